@@ -1,780 +1,4568 @@
 import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.BufferedWriter;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.File;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import jdk.jfr.Category;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
 
 // Compiler for Jack programs
 // Input a directory name
 
 public class JackCompiler {
 
+    //Bump when the generated code changes, so incremental builds recompile everything
+    static final String VERSION = "1.2";
+
     String lineSeparator = System.getProperty("line.separator");
 
     public static void main(String[] args) {
-	if (args.length > 0) {
-	    String dirName = args[0];
+	CompilerOptions options = CompilerOptions.parse(args);
+	if (options.version) {
+	    System.out.println("JackCompiler " + VERSION);
+	    return;
+	}
+	if (options.inputDir != null) {
+	    String dirName = options.inputDir;
 	    System.out.println("Attempting to open folder at: " + dirName);
+	    CompileStats walk = new CompileStats(dirName, options.stats);
+	    walk.begin(CompileStats.WALK);
 	    ArrayList<String> filenames = getFileNames(dirName);
-	    
+	    walk.end(CompileStats.WALK);
+
+	    BuildCache cache = null;
+	    if (options.incremental && options.wholeProgram) {
+		//A file's output depends on the rest of the program, which the cache doesn't track
+		System.out.println("--incremental is ignored with --whole-program");
+	    } else if (options.incremental) {
+		cache = new BuildCache(VERSION + options.outputFlags());
+	    }
+
+	    int failed = build(filenames, options, cache, walk);
+	    if (options.watch) {
+		try {
+		    new CompileDaemon(options, cache).run();
+		} catch (IOException e) {
+		    System.err.println("Watch mode stopped: " + e.getMessage());
+		    System.exit(1);
+		}
+	    } else if (failed > 0) {
+		System.exit(1);
+	    }
+	}
+    }
+
+    // Compiles the files and prints a report, returns how many failed.
+    // 'walk' holds the stats of finding the files, for --stats.
+    static int build(List<String> filenames, CompilerOptions options, BuildCache cache, CompileStats walk) {
+	long start = System.nanoTime();
+	List<CompileResult> results = compileAll(filenames, options, cache);
+	long wallNanos = System.nanoTime() - start;
+
+	//Report in the order getFileNames returned, no matter which file finished first
+	long sumNanos = 0;
+	int failed = 0;
+	for (CompileResult r:results) {
+	    sumNanos += r.getNanos();
+	    for (String note:r.getNotes()) {
+		System.out.println(note);
+	    }
+	    if (r.getError() != null) {
+		reportError(r);
+		failed++;
+	    }
+	}
+	System.out.println("Compiled " + results.size() + " files in " + (wallNanos / 1000000) + " ms"
+			   + " (sum of per-file times " + (sumNanos / 1000000) + " ms, jobs: " + options.jobs + ")");
+	failed += finishProgram(options, results);
+	if (cache != null) {
+	    try {
+		cache.save();
+	    } catch (IOException e) {
+		System.err.println("Could not write build cache: " + e.getMessage());
+	    }
+	    System.out.println("Incremental build: " + cache.getHits() + " cache hits, " + cache.getMisses() + " misses");
+	}
+	if (options.stats) {
+	    printStats(results, options, walk, wallNanos);
+	}
+	return failed;
+    }
+
+    static void printStats(List<CompileResult> results, CompilerOptions options, CompileStats walk, long wallNanos) {
+	CompileStats total = new CompileStats(null, true);
+	total.add(walk);
+	List<CompileStats> files = new ArrayList<>();
+	for (CompileResult r:results) {
+	    total.add(r.getStats());
+	    files.add(r.getStats());
+	}
+	CompileStats.print(total, files);
+	if (options.statsJson != null) {
+	    try {
+		CompileStats.writeJson(Paths.get(options.statsJson), wallNanos, options.jobs, total, files);
+	    } catch (IOException e) {
+		System.err.println("Could not write stats: " + e.getMessage());
+	    }
+	}
+    }
+
+    // Compiles every file, using a pool of 'jobs' threads if asked to. The pool also
+    // compiles the subroutines of a file in parallel, so one big file can use it too.
+    // Files share no state, so each one produces the same bytes either way.
+    // Results come back in the same order as filenames.
+    // A non-null cache skips files whose source and output are unchanged since the last run.
+    static List<CompileResult> compileAll(List<String> filenames, CompilerOptions options, BuildCache cache) {
+	List<CompileResult> results = new ArrayList<>();
+	int jobs = options.jobs;
+	if (jobs <= 1) {
 	    for (String f:filenames) {
-		//Create tokenizer from file
-		Tokenizer t = new Tokenizer(f);
-		//Create CompileParser with Tokenizer
-		CompileParser CP = new CompileParser(t, new SymbolTable());
-		
-		//put CompilerParser to parse recursively
+		results.add(compileFile(f, options, cache));
+	    }
+	    return results;
+	}
+	ForkJoinPool pool = new ForkJoinPool(jobs);
+	try {
+	    List<ForkJoinTask<CompileResult>> tasks = new ArrayList<>();
+	    for (String f:filenames) {
+		tasks.add(pool.submit(() -> compileFile(f, options, cache)));
+	    }
+	    for (ForkJoinTask<CompileResult> task:tasks) {
+		results.add(task.join());
+	    }
+	} finally {
+	    pool.shutdown();
+	}
+	return results;
+    }
+
+    static CompileResult compileFile(String f, CompilerOptions options, BuildCache cache) {
+	long start = System.nanoTime();
+	CompileStats stats = new CompileStats(f, options.stats);
+	Diagnostics diagnostics = new Diagnostics(f);
+	try {
+	    String outputPath = f.replace(".jack", ".vm"); //Replace .xml with .vm for final version
+	    String sourceHash = null;
+	    if (cache != null) {
+		stats.begin(CompileStats.CACHE);
+		sourceHash = BuildCache.hashFile(Paths.get(f));
+		boolean upToDate = cache.isUpToDate(f, sourceHash, outputPath);
+		stats.end(CompileStats.CACHE);
+		if (upToDate) {
+		    stats.cached = true;
+		    CompileResult result = new CompileResult(f, null, System.nanoTime() - start, stats);
+		    if (options.emitsAsm()) {
+			result.setCode(VmReader.read(Paths.get(outputPath)));
+		    }
+		    return result;
+		}
+	    }
+	    //Create tokenizer from file
+	    stats.begin(CompileStats.LEX);
+	    Tokenizer t = new Tokenizer(f, diagnostics);
+	    stats.end(CompileStats.LEX);
+	    stats.tokens = t.getTokenCount();
+	    //Create CompileParser with Tokenizer
+	    stats.begin(CompileStats.PARSE);
+	    SymbolTable st = new SymbolTable();
+	    CompileParser CP = new CompileParser(t, st, options);
+
+	    //put CompilerParser to parse recursively
+	    try {
 		CP.compileClass();
-		//Get resulting file and write to disk
-		String res = CP.getFileStr();
-		String outputPath = f.replace(".jack", ".vm"); //Replace .xml with .vm for final version
-		try (FileWriter writer = new FileWriter(outputPath)) {
-		    writer.write(res);
-		} catch (IOException e) {
-		    e.printStackTrace();
-		}
-		//Print Tokenizer input
-		/*
-		t.resetIndex();
-		StringBuilder b = new StringBuilder();
-		while (t.hasMoreTokens()){
-		    b.append(t.getToken()+", type: "+t.getType()+"\n");
-		    t.advance();
+	    } catch (IllegalStateException e) {
+		//Nothing more can be made of the file, but keep what was found before
+		t.error(t.getIndex(), e.getMessage());
+	    }
+	    VmCode code = CP.getCode();
+	    stats.end(CompileStats.PARSE);
+	    stats.addAllocated(CompileStats.PARSE, CP.workerAllocated);
+	    stats.symbolLookups = st.getLookupCount();
+	    if (diagnostics.hasErrors()) {
+		return failed(f, new CompileErrors(diagnostics.getCount()), start, stats, diagnostics);
+	    }
+	    ArrayList<String> notes = new ArrayList<>();
+	    for (Map.Entry<String, Integer> e:CP.getRemovedCalls().entrySet()) {
+		notes.add("Strength reduction in " + e.getKey() + ": " + e.getValue() + " multiply/divide calls removed");
+	    }
+	    if (options.optimize) {
+		int before = code.size();
+		stats.begin(CompileStats.OPTIMISE);
+		code = VmPeephole.optimize(code);
+		VmFlowGraph flow = new VmFlowGraph();
+		code = flow.optimize(code);
+		stats.end(CompileStats.OPTIMISE);
+		notes.add("Optimised " + f + ": " + before + " -> " + code.size() + " VM instructions");
+		notes.add("Control flow of " + f + ": " + flow.branchesRemoved + " branches and "
+			  + flow.labelsRemoved + " labels removed");
+	    }
+	    stats.instructions = code.size();
+	    //Stream the code to disk, unless whole-program passes still have to change it
+	    if (options.emitsVm() && !options.wholeProgram) {
+		stats.begin(CompileStats.WRITE);
+		String outputHash = VmWriter.write(code, Paths.get(outputPath));
+		stats.end(CompileStats.WRITE);
+		if (cache != null) {
+		    cache.record(f, sourceHash, outputHash);
 		}
-		String res2 = b.toString();
-		String outputPath2 = f.replace(".jack", "Tokens.txt"); 	
-		try (FileWriter writer = new FileWriter(outputPath2)) {
-		    writer.write(res2);
-		} catch (IOException e) {
-		    e.printStackTrace();
+	    }
+	    //Print Tokenizer input
+	    /*
+	    t.resetIndex();
+	    StringBuilder b = new StringBuilder();
+	    while (t.hasMoreTokens()){
+		b.append(t.getToken()+", type: "+t.getType()+"\n");
+		t.advance();
+	    }
+	    String res2 = b.toString();
+	    String outputPath2 = f.replace(".jack", "Tokens.txt");
+	    try (FileWriter writer = new FileWriter(outputPath2)) {
+		writer.write(res2);
+	    }
+	    */
+	    CompileResult result = new CompileResult(f, null, System.nanoTime() - start, stats);
+	    result.getNotes().addAll(notes);
+	    if (options.emitsAsm() || options.wholeProgram) {
+		result.setCode(code);
+	    }
+	    return result;
+	} catch (IOException | RuntimeException e) {
+	    return failed(f, e, start, stats, diagnostics);
+	}
+    }
+
+    static CompileResult failed(String f, Exception e, long start, CompileStats stats, Diagnostics diagnostics) {
+	CompileResult result = new CompileResult(f, e, System.nanoTime() - start, stats);
+	result.setDiagnostics(diagnostics);
+	return result;
+    }
+
+    // Every error of a failed file, then the line saying it failed
+    static void reportError(CompileResult r) {
+	if (r.getDiagnostics() != null) {
+	    for (String error:r.getDiagnostics().getErrors()) {
+		System.err.println(error);
+	    }
+	    int hidden = r.getDiagnostics().getCount() - r.getDiagnostics().getErrors().size();
+	    if (hidden > 0) {
+		System.err.println("... and " + hidden + " more");
+	    }
+	}
+	System.err.println("Error compiling " + r.getFileName() + ": " + r.getError());
+    }
+
+    // The steps that need every file compiled first: whole-program passes, writing the
+    // .vm files those passes changed, and the .asm. Returns 1 on failure.
+    static int finishProgram(CompilerOptions options, List<CompileResult> results) {
+	if (!options.wholeProgram && !options.emitsAsm()) {
+	    return 0;
+	}
+	for (CompileResult r:results) {
+	    if (r.getError() != null) {
+		System.err.println("Not linking, the program did not compile");
+		return 1;
+	    }
+	}
+	try {
+	    TreeMap<String, VmCode> libraries = loadLibraries(options, results);
+	    if (options.wholeProgram) {
+		WholeProgram.link(results, libraries, options);
+		if (options.emitsVm()) {
+		    for (CompileResult r:results) {
+			VmWriter.write(r.getCode(), Paths.get(r.getFileName().replace(".jack", ".vm")));
+		    }
 		}
-		*/
 	    }
+	    if (options.emitsAsm()) {
+		writeAsm(options, results, libraries);
+	    }
+	    return 0;
+	} catch (IOException | RuntimeException e) {
+	    System.err.println("Error linking the program: " + e);
+	    return 1;
+	}
+    }
+
+    // .vm files in the tree with no .jack next to them, like the OS
+    static TreeMap<String, VmCode> loadLibraries(CompilerOptions options, List<CompileResult> results) throws IOException {
+	TreeMap<String, VmCode> libraries = new TreeMap<>();
+	for (String f:findFiles(options.inputDir, ".vm")) {
+	    if (!Files.exists(Paths.get(f.replace(".vm", ".jack")))) {
+		libraries.put(f, VmReader.read(Paths.get(f)));
+	    }
+	}
+	return libraries;
+    }
+
+    // Translates the whole program, the compiled files and the libraries, into <dir>/<dir name>.asm
+    static void writeAsm(CompilerOptions options, List<CompileResult> results, TreeMap<String, VmCode> libraries) throws IOException {
+	TreeMap<String, VmCode> program = new TreeMap<>(libraries);
+	for (CompileResult r:results) {
+	    program.put(r.getFileName().replace(".jack", ".vm"), r.getCode());
+	}
+	List<String> names = new ArrayList<>();
+	for (String f:program.keySet()) {
+	    names.add(Paths.get(f).getFileName().toString().replace(".vm", ""));
 	}
+	if (WholeProgram.findFunction(program.values(), "Sys.init") == null) {
+	    System.err.println("Warning: no Sys.init in the program, which the bootstrap code calls");
+	}
+	Path dir = Paths.get(options.inputDir);
+	Path asm = dir.resolve(dir.toAbsolutePath().normalize().getFileName() + ".asm");
+	HackAsmWriter.writeProgram(asm, names, new ArrayList<>(program.values()));
+	System.out.println("Wrote " + asm + " (" + program.size() + " files)");
     }
 
     public static ArrayList<String> getFileNames (String directory) {
+	ArrayList<String> res = findFiles(directory, ".jack");
+	for (String f2:res) {
+	    System.out.println("Filenames found in dir: " + f2); 
+	}
+	return res;
+    }
+
+    static ArrayList<String> findFiles(String directory, String extension) {
 	ArrayList<String> res = new ArrayList<>();
 	
 	Path dirPath = Paths.get(directory);
 	try (Stream<Path> paths = Files.walk(dirPath)) {
 	    res = paths
 		.filter(Files::isRegularFile)
-		.filter(path -> path.toString().endsWith(".jack"))
+		.filter(path -> path.toString().endsWith(extension))
 		.map(Path::toString) // Convert Path to String
+		.sorted() // Same order on every filesystem
 		.collect(Collectors.toCollection(ArrayList::new));
 	} catch (IOException e) {
 	    e.printStackTrace();
 	}
-	for (String f2:res) {
-	    System.out.println("Filenames found in dir: " + f2); 
-	}
 	return res;
     }
 
 }
 
-class Tokenizer {
-    HashMap<Integer, String[]> tokens = new HashMap<>();
-    int tokenIndex = 0;
-
-    String symbols = "{}()[].,;+-*/&|<>=~";
-
-    public Tokenizer (String filename) {
-	try (BufferedReader reader = new BufferedReader(new FileReader(filename))) {
-	    StringBuilder fileContent = new StringBuilder();
-	    String line;
-	    boolean isMultiLineComment = false;
-
-	    while ((line = reader.readLine()) != null) {
+class CompilerOptions {
+    String inputDir = null;
+    int jobs = 1;
+    boolean incremental = false;
+    boolean watch = false;
+    int port = 0;             // 0: no request socket in watch mode
+    boolean optimize = false; // -O: run the peephole optimiser on the VM code
+    boolean poolStrings = false;
+    boolean stats = false;
+    String statsJson = null;  // --stats-json: also write the stats to this file
+    String emit = "vm";       // vm, asm or both
+    boolean wholeProgram = false;
+    boolean inline = false;
+    int inlineBudget = 16;    // most instructions a subroutine body can have to be inlined
+    boolean version = false;  // --version: print the version and stop
 
-		line.trim();
-		if (line.isEmpty()) {
-		    continue;
+    static CompilerOptions parse(String[] args) {
+	CompilerOptions o = new CompilerOptions();
+	for (int i = 0; i < args.length; i++) {
+	    String arg = args[i];
+	    if (arg.equals("--jobs")) {
+		if (i + 1 >= args.length) {
+		    throw new IllegalArgumentException("--jobs needs a thread count");
 		}
-		if (isMultiLineComment){
-		    if (line.contains("*/")) {
-			isMultiLineComment = false;
-		    }
-		    continue;
-		} else {
-		    if (line.contains("/*")) {
-			isMultiLineComment = true;
-			if (line.contains("*/")) {
-			    isMultiLineComment = false;
-			}
-			continue;
-		    }
-		    if (line.charAt(0) == '/') {
-			continue;
-		    }  
-		    String[] temp = line.split("//");
-		    String tempWrite = temp[0];
-		    fileContent.append(tempWrite);
-		}
-	    }
-	    String strF = fileContent.toString();
-
-	    String currentToken = "";
-	    boolean processingStringC = false;
-	    
-	    //Do stuff to file by chars
-	    for (int i = 0; i < strF.length(); i++) {
-		char c = strF.charAt(i);
-		//String Constant related
-		if (processingStringC) {
-		    if (c == '"') {
-			//End token
-			currentToken += c;
-			tokens.put(tokenIndex, new String[]{currentToken, "StringConstant"});
-                        tokenIndex++;
-                        currentToken = "";
-			processingStringC = false;
-		    } else {
-			currentToken += c;
-		    }
-		    continue;
+		i++;
+		o.jobs = Integer.parseInt(args[i]);
+		if (o.jobs < 1) {
+		    throw new IllegalArgumentException("--jobs must be at least 1: " + args[i]);
 		}
-		if (c == '"') {
-		    currentToken += c;
-		    processingStringC = true;
-		}
-
-		//Rest of the chars:
-		else if (symbols.indexOf(c) >= 0) { 
-                    if (!currentToken.isEmpty()) {
-                        tokens.put(tokenIndex, new String[]{currentToken, determineTokenType(currentToken)});
-                        tokenIndex++;
-                        currentToken = "";
-                    }
-                    tokens.put(tokenIndex, new String[]{Character.toString(c), "symbol"});
-                    tokenIndex++;
-                } else if (c == ' ') {
-                    if (!currentToken.isEmpty()) {
-                        tokens.put(tokenIndex, new String[]{currentToken, determineTokenType(currentToken)});
-                        tokenIndex++;
-                        currentToken = "";
-                    }
-                } else if (c=='\n' || c=='\t') {
-		    continue;
-		} else {
-                    currentToken += c; 
-                }
+	    } else if (arg.equals("-O")) {
+		o.optimize = true;
+	    } else if (arg.equals("--pool-strings")) {
+		o.poolStrings = true;
+	    } else if (arg.equals("--emit")) {
+		if (i + 1 >= args.length) {
+		    throw new IllegalArgumentException("--emit needs vm, asm or both");
+		}
+		i++;
+		o.emit = args[i];
+		if (!o.emit.equals("vm") && !o.emit.equals("asm") && !o.emit.equals("both")) {
+		    throw new IllegalArgumentException("--emit must be vm, asm or both: " + args[i]);
+		}
+	    } else if (arg.equals("--whole-program")) {
+		o.wholeProgram = true;
+	    } else if (arg.equals("--inline")) {
+		o.inline = true;
+		o.wholeProgram = true;
+	    } else if (arg.equals("--inline-budget")) {
+		if (i + 1 >= args.length) {
+		    throw new IllegalArgumentException("--inline-budget needs an instruction count");
+		}
+		i++;
+		o.inlineBudget = Integer.parseInt(args[i]);
+	    } else if (arg.equals("--stats")) {
+		o.stats = true;
+	    } else if (arg.equals("--stats-json")) {
+		if (i + 1 >= args.length) {
+		    throw new IllegalArgumentException("--stats-json needs a file name");
+		}
+		i++;
+		o.stats = true;
+		o.statsJson = args[i];
+	    } else if (arg.equals("--version")) {
+		o.version = true;
+	    } else if (arg.equals("--incremental")) {
+		o.incremental = true;
+	    } else if (arg.equals("--watch")) {
+		o.watch = true;
+	    } else if (arg.equals("--port")) {
+		if (i + 1 >= args.length) {
+		    throw new IllegalArgumentException("--port needs a port number");
+		}
+		i++;
+		o.port = Integer.parseInt(args[i]);
+	    } else {
+		o.inputDir = arg;
 	    }
-
-	} catch (IOException e) {
-	    System.err.println("an error reading file: "+e.getMessage());
-	}
-	tokenIndex = 0;
-    }
-    
-    String determineTokenType(String token) {
-	if (token.charAt(0) == '"' && token.charAt(token.length()-1) == '"') {
-	    return "StringConstant";
-	} 
-	else try {
-	    Integer.parseInt(token);
-	    return "integerConstant";
-	} catch (Exception e) {
-	    //System.out.println("");
-	}
-	if (token.equals("class") ||
-	    token.equals("constructor") ||
-	    token.equals("function") ||
-	    token.equals("method") ||
-	    token.equals("field") ||
-	    token.equals("static") ||
-	    token.equals("var") ||
-	    token.equals("int") ||
-	    token.equals("char") ||
-	    token.equals("boolean") ||
-	    token.equals("void") ||
-	    token.equals("true") ||
-	    token.equals("false") ||
-	    token.equals("null") ||
-	    token.equals("this") ||
-	    token.equals("let") ||
-	    token.equals("do") ||
-	    token.equals("if") ||
-	    token.equals("else") ||
-	    token.equals("while") ||
-	    token.equals("return")) {
-	    
-	    return "keyword";
-	} else {
-	    return "identifier";
 	}
+	return o;
     }
 
-    public String getToken() {
-	return tokens.get(tokenIndex)[0];
+    boolean emitsVm() {
+	return !emit.equals("asm");
+    }
+    boolean emitsAsm() {
+	return !emit.equals("vm");
     }
 
-    public String getType() {
-	return tokens.get(tokenIndex)[1];
+    // The options that change the generated code, so the build cache can tell builds apart
+    String outputFlags() {
+	return (optimize ? " -O" : "") + (poolStrings ? " --pool-strings" : "");
     }
+}
 
-    public void advance() {
-	tokenIndex++;
+class CompileResult {
+    private String fileName;
+    private Exception error;
+    private long nanos;
+    private ArrayList<String> notes = new ArrayList<>(); // report lines, printed in file order
+    private CompileStats stats;
+    private VmCode code;      // kept when the program is also written as .asm
+    private Diagnostics diagnostics;
+
+    public CompileResult(String f, Exception e, long n, CompileStats s) {
+	fileName = f;
+	error = e;
+	nanos = n;
+	stats = s;
     }
-    
-    public boolean hasMoreTokens() {
-	if (tokenIndex < tokens.size()) {
-	    return true;
-	} else return false;
+    public String getFileName() {
+	return fileName;
     }
-    public String checkNext() {
-	if (hasMoreTokens()) {
-	    return tokens.get(tokenIndex+1)[0];
-	} else return "nullNext";
+    public Exception getError() {
+	return error;
+    }
+    public long getNanos() {
+	return nanos;
+    }
+    public List<String> getNotes() {
+	return notes;
+    }
+    public CompileStats getStats() {
+	return stats;
+    }
+    public VmCode getCode() {
+	return code;
+    }
+    public void setCode(VmCode c) {
+	code = c;
+    }
+    public Diagnostics getDiagnostics() {
+	return diagnostics;
+    }
+    public void setDiagnostics(Diagnostics d) {
+	diagnostics = d;
     }
-    public void resetIndex() {
-	tokenIndex = 0;
-    } 
 }
 
-class CompileParser {
-    Tokenizer t;
-    StringBuilder b;
-    SymbolTable st;
-    
-    String className;
-    int runningLoopIndex;
-    int currentArgs;
-    HashMap<Character, String> charCodes;
+// The errors found in one file. The lexer and parser record them here and carry
+// on, so one run reports every error in the file, not just the first.
+class Diagnostics {
+    //After this many a file is probably not Jack at all, the rest would only be noise
+    static final int MAX_ERRORS = 100;
 
-    public CompileParser (Tokenizer _t, SymbolTable _st) {
-	t = _t;
-	b = new StringBuilder();
-	st = _st;
-	runningLoopIndex = 0;
-	currentArgs = 0;
+    private String fileName;
+    private ArrayList<String> errors = new ArrayList<>();
+    private ArrayList<Long> positions = new ArrayList<>();   // line << 32 | column, to sort by
+    private int count = 0;
 
-	charCodes = new HashMap<>();
-        initializeCharCodes();
+    public Diagnostics(String f) {
+	fileName = f;
     }
-    
-    private void initializeCharCodes() {
-        // Adding ASCII codes for space and special characters
-        charCodes.put(' ', "32");
-        charCodes.put('!', "33");
-        charCodes.put('"', "34");
-        charCodes.put('#', "35");
-        charCodes.put('$', "36");
-        charCodes.put('%', "37");
-        charCodes.put('&', "38");
-        charCodes.put('\'', "39");
-        charCodes.put('(', "40");
-        charCodes.put(')', "41");
-        charCodes.put('*', "42");
-        charCodes.put('+', "43");
-        charCodes.put(',', "44");
-        charCodes.put('-', "45");
-        charCodes.put('.', "46");
-        charCodes.put('/', "47");
-
-        // Adding ASCII codes for numbers
-        for (int i = 0; i < 10; i++) {
-            charCodes.put((char) ('0' + i), String.valueOf(48 + i));
-        }
-
-        // Adding ASCII codes for special characters
-        charCodes.put(':', "58");
-        charCodes.put(';', "59");
-        charCodes.put('<', "60");
-        charCodes.put('=', "61");
-        charCodes.put('>', "62");
-        charCodes.put('?', "63");
-        charCodes.put('@', "64");
-
-        // Adding ASCII codes for uppercase letters
-        for (int i = 0; i < 26; i++) {
-            charCodes.put((char) ('A' + i), String.valueOf(65 + i));
-        }
-
-        // Adding ASCII codes for lowercase letters
-        for (int i = 0; i < 26; i++) {
-            charCodes.put((char) ('a' + i), String.valueOf(97 + i));
-        }
-
-        // Adding ASCII codes for the rest of the special characters
-        charCodes.put('[', "91");
-        charCodes.put('\\', "92");
-        charCodes.put(']', "93");
-        charCodes.put('^', "94");
-        charCodes.put('_', "95");
-        charCodes.put('`', "96");
-        charCodes.put('{', "123");
-        charCodes.put('|', "124");
-        charCodes.put('}', "125");
-        charCodes.put('~', "126");
+
+    //Line and column count from 1, line 0 is for errors about the whole file
+    public void error(int line, int column, String message) {
+	count++;
+	if (errors.size() >= MAX_ERRORS) {
+	    return;
+	}
+	if (line == 0) {
+	    errors.add(fileName + ": " + message);
+	} else {
+	    errors.add(fileName + ":" + line + ":" + column + ": " + message);
+	}
+	positions.add(((long) line << 32) | column);
+    }
+    public void addAll(Diagnostics other) {
+	for (int i = 0; i < other.errors.size(); i++) {
+	    if (errors.size() < MAX_ERRORS) {
+		errors.add(other.errors.get(i));
+		positions.add(other.positions.get(i));
+	    }
+	}
+	count += other.count;
     }
+    public String getFileName() {
+	return fileName;
+    }
+    public boolean hasErrors() {
+	return count > 0;
+    }
+    public int getCount() {
+	return count;
+    }
+    // "file:line:column: message", in source order. The lexer finds its errors
+    // before the parser starts, so the order they were found in is not that.
+    public List<String> getErrors() {
+	List<Integer> order = new ArrayList<>();
+	for (int i = 0; i < errors.size(); i++) {
+	    order.add(i);
+	}
+	order.sort(Comparator.comparingLong(positions::get));
+	List<String> sorted = new ArrayList<>();
+	for (int i:order) {
+	    sorted.add(errors.get(i));
+	}
+	return sorted;
+    }
+}
 
-    public String getFileStr() {
-	return b.toString();
+// What a file that had errors fails with, the errors themselves are in its Diagnostics
+class CompileErrors extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    public CompileErrors(int count) {
+	super(count == 1 ? "1 error" : count + " errors");
+    }
+    @Override
+    public String toString() {
+	return getMessage();
     }
+}
 
-    public void compileClass() {
-	st.resetClass();
+// Numbers for --stats, for one file or for the whole build. Each phase gets its
+// wall time and the bytes the compiling thread allocated during it (for parse
+// with --jobs, also what the pool threads allocated on its bodies), and with
+// --stats a JFR CompilePhaseEvent marks it as well. Without --stats begin/end
+// do nothing.
+class CompileStats {
+    static final int WALK = 0;
+    static final int CACHE = 1;
+    static final int LEX = 2;
+    static final int PARSE = 3;
+    static final int OPTIMISE = 4;
+    static final int WRITE = 5;
+    static final String[] PHASE_NAMES = {"walk", "cache", "lex", "parse", "optimise", "write"};
+
+    private static final com.sun.management.ThreadMXBean THREADS =
+	(com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
 
-	String cToken = t.getToken();
-	if (!cToken.equals("class")) {
-	    System.err.println("Class defined unproperly: "+cToken);
+    private boolean enabled;
+    private String fileName;
+    long[] nanos = new long[PHASE_NAMES.length];
+    long[] allocated = new long[PHASE_NAMES.length];
+    long tokens;
+    long instructions;
+    long symbolLookups;
+    boolean cached;
+
+    private long startNanos;
+    private long startAllocated;
+    private CompilePhaseEvent event;
+
+    public CompileStats(String f, boolean e) {
+	fileName = f;
+	enabled = e;
+    }
+
+    public boolean isEnabled() {
+	return enabled;
+    }
+    public String getFileName() {
+	return fileName;
+    }
+
+    public void begin(int phase) {
+	if (!enabled) {
 	    return;
-	} else {
-	    t.advance();
-	    className = t.getToken();
-	    cToken = t.getToken();
-	    t.advance();
-	    cToken = t.getToken();
-	    t.advance();
-	    //class variables
-	    while (t.getToken().equals("field") || t.getToken().equals("static")){
-		compileClassVarDec();
-	    }
-	    while (t.getToken().equals("constructor") || t.getToken().equals("function") || t.getToken().equals("method")) {
-		compileSubroutine();
-	    }
-	    cToken = t.getToken();
 	}
-    } 
+	event = new CompilePhaseEvent();
+	event.file = fileName;
+	event.phase = PHASE_NAMES[phase];
+	event.begin();
+	startAllocated = THREADS.getCurrentThreadAllocatedBytes();
+	startNanos = System.nanoTime();
+    }
 
-    void compileClassVarDec() {
-	String dest = t.getToken();
-	if (dest.equals("field")) { dest = "this";}
+    public void end(int phase) {
+	if (!enabled) {
+	    return;
+	}
+	nanos[phase] += System.nanoTime() - startNanos;
+	allocated[phase] += THREADS.getCurrentThreadAllocatedBytes() - startAllocated;
+	event.commit();
+	event = null;
+    }
 
-	t.advance();
-	String type = t.getToken();
+    // Bytes allocated so far by the calling thread
+    static long threadAllocated() {
+	return THREADS.getCurrentThreadAllocatedBytes();
+    }
 
-	t.advance();
-	String name = t.getToken();
-	//Insert to classtable
-	st.insertClassEntry(name, type, dest);
-	//Check for multiple var declaration
-	t.advance();
-	while (!t.getToken().equals(";")) {
-	    t.advance();
-	    name = t.getToken();
-	    st.insertClassEntry(name, type, dest);
-	    t.advance();
-	}
-	t.advance();
+    // Counts bytes that other threads allocated for this file in 'phase'
+    public void addAllocated(int phase, long bytes) {
+	allocated[phase] += bytes;
     }
 
-    void compileSubroutine() {
-	st.resetSubroutine();
-	String subType = t.getToken();
-	t.advance();
+    public void add(CompileStats other) {
+	for (int p = 0; p < PHASE_NAMES.length; p++) {
+	    nanos[p] += other.nanos[p];
+	    allocated[p] += other.allocated[p];
+	}
+	tokens += other.tokens;
+	instructions += other.instructions;
+	symbolLookups += other.symbolLookups;
+    }
 
-	if (subType.equals("method")){
-	    st.insertSubroutineEntry("this", className, "argument");
+    public long totalNanos() {
+	long sum = 0;
+	for (long n:nanos) {
+	    sum += n;
 	}
-	// 'void' or type
-	String returnType = t.getToken();
-	if (returnType.equals("void") || returnType.equals("int") || returnType.equals("char") || returnType.equals("boolean")) {
-	    //b.append("<keyword>"+cToken+"</keyword>\n");
-	} else {
-	    //b.append("<identifier>"+cToken+"</identifier>\n");
+	return sum;
+    }
+    public long totalAllocated() {
+	long sum = 0;
+	for (long n:allocated) {
+	    sum += n;
 	}
-	t.advance();
+	return sum;
+    }
 
-	// subroutineName
-	String subName = t.getToken();
-	t.advance();
+    // Per second of the phase that produces them, 0 if it took no measurable time
+    public long tokensPerSecond() {
+	return perSecond(tokens, nanos[LEX]);
+    }
+    public long instructionsPerSecond() {
+	return perSecond(instructions, nanos[PARSE]);
+    }
+    private static long perSecond(long count, long n) {
+	return n == 0 ? 0 : count * 1000000000L / n;
+    }
 
-	// '(' parameterList ')'
-	t.advance();
-	compileParameterList();
-	t.advance();
-	
-	t.advance();
-	// varDec*
-	while (t.getToken().equals("var")) {
-	    compileVarDec();
+    // Prints the build totals per phase, then a line per file
+    static void print(CompileStats total, List<CompileStats> files) {
+	System.out.println(String.format("%-10s %10s %12s", "phase", "ms", "alloc KB"));
+	for (int p = 0; p < PHASE_NAMES.length; p++) {
+	    System.out.println(String.format("%-10s %10.2f %12d", PHASE_NAMES[p], total.nanos[p] / 1e6, total.allocated[p] / 1024));
 	}
-	b.append("function "+className+"."+subName+" "+Integer.toString(st.getLocalCount())+"\n");
-	if (subType.equals("constructor")) {
-	    b.append("push constant "+Integer.toString(st.getFieldCount())+"\n");
-	    b.append("call Memory.alloc 1\n");
-	    b.append("pop pointer 0\n");
+	System.out.println(total.tokens + " tokens (" + total.tokensPerSecond() + "/s lexing), "
+			   + total.instructions + " VM instructions (" + total.instructionsPerSecond() + "/s parsing), "
+			   + total.symbolLookups + " symbol lookups");
+	for (CompileStats s:files) {
+	    if (s.cached) {
+		System.out.println(s.fileName + ": cached");
+	    } else {
+		System.out.println(String.format("%s: %.2f ms, %d KB allocated, %d tokens, %d instructions, %d symbol lookups",
+						 s.fileName, s.totalNanos() / 1e6, s.totalAllocated() / 1024,
+						 s.tokens, s.instructions, s.symbolLookups));
+	    }
 	}
-	if (subType.equals("method")) {
-	    b.append("push argument 0\n");
-	    b.append("pop pointer 0\n");
+    }
+
+    static void writeJson(Path path, long wallNanos, int jobs, CompileStats total, List<CompileStats> files) throws IOException {
+	StringBuilder b = new StringBuilder();
+	b.append("{\n  \"version\": \"").append(JackCompiler.VERSION).append("\",\n");
+	b.append("  \"jobs\": ").append(jobs).append(",\n");
+	b.append("  \"wallNanos\": ").append(wallNanos).append(",\n");
+	b.append("  \"total\": ");
+	total.appendJson(b, "  ");
+	b.append(",\n  \"files\": [");
+	for (int k = 0; k < files.size(); k++) {
+	    b.append(k == 0 ? "\n    " : ",\n    ");
+	    files.get(k).appendJson(b, "    ");
 	}
-	// statements
-	compileStatements();
+	b.append("\n  ]\n}\n");
+	Files.write(path, b.toString().getBytes(StandardCharsets.UTF_8));
+    }
 
-	t.advance();
+    private void appendJson(StringBuilder b, String indent) {
+	b.append("{\n");
+	if (fileName != null) {
+	    b.append(indent).append("  \"file\": \"").append(jsonEscape(fileName)).append("\",\n");
+	    b.append(indent).append("  \"cached\": ").append(cached).append(",\n");
+	}
+	b.append(indent).append("  \"phases\": {");
+	for (int p = 0; p < PHASE_NAMES.length; p++) {
+	    b.append(p == 0 ? "\n" : ",\n");
+	    b.append(indent).append("    \"").append(PHASE_NAMES[p]).append("\": {\"nanos\": ").append(nanos[p])
+		.append(", \"allocatedBytes\": ").append(allocated[p]).append("}");
+	}
+	b.append("\n").append(indent).append("  },\n");
+	b.append(indent).append("  \"tokens\": ").append(tokens).append(",\n");
+	b.append(indent).append("  \"tokensPerSecond\": ").append(tokensPerSecond()).append(",\n");
+	b.append(indent).append("  \"instructions\": ").append(instructions).append(",\n");
+	b.append(indent).append("  \"instructionsPerSecond\": ").append(instructionsPerSecond()).append(",\n");
+	b.append(indent).append("  \"symbolLookups\": ").append(symbolLookups).append("\n");
+	b.append(indent).append("}");
     }
 
-    void compileParameterList() {
-	// parameterList: ((type varName) (',' type varName)*)?
-	String cToken = t.getToken();
-	String type;
-	String name;
-	while (!cToken.equals(")")) { // stop at closing parenthesis
-	    if (cToken.equals(",")) {
-		// ',' in list
+    private static String jsonEscape(String s) {
+	StringBuilder b = new StringBuilder();
+	for (int i = 0; i < s.length(); i++) {
+	    char c = s.charAt(i);
+	    if (c == '"' || c == '\\') {
+		b.append('\\').append(c);
+	    } else if (c < ' ') {
+		b.append(String.format("\\u%04x", (int) c));
 	    } else {
-		// type varName
-		type = t.getToken();
-		t.advance();
-		// varName
-		name = t.getToken();
-		st.insertSubroutineEntry(name, type, "argument");
+		b.append(c);
 	    }
-	    t.advance();
-	    cToken = t.getToken();
+	}
+	return b.toString();
+    }
+}
+
+// Shows up in a flight recording (java -XX:StartFlightRecording) when running with --stats
+@Name("jack.CompilePhase")
+@Label("Compile Phase")
+@Category("Jack Compiler")
+class CompilePhaseEvent extends Event {
+    @Label("File")
+    String file;
+    @Label("Phase")
+    String phase;
+}
+
+// Keeps one JVM running between edits. Watches the input directory and
+// recompiles .jack files as they change, and if a port is given, also takes
+// requests on a loopback socket, one command per line:
+//   compile              compile every file in the input directory
+//   compile <file>...    compile just these files
+//   stop                 shut the daemon down
+// Each compiled file is answered with "ok <file> <ms>" or "error <file>: <message>",
+// and every command ends with a "done" line.
+class CompileDaemon {
+    static final long SETTLE_MILLIS = 50;   // editors often write a file in several steps
+
+    private CompilerOptions options;
+    private BuildCache cache;
+    private WatchService watcher;
+    private volatile boolean running = true;
+
+    public CompileDaemon(CompilerOptions o, BuildCache c) {
+	options = o;
+	cache = c;
+    }
+
+    public void run() throws IOException {
+	watcher = FileSystems.getDefault().newWatchService();
+	registerAll(Paths.get(options.inputDir));
+	if (options.port > 0) {
+	    ServerSocket server = new ServerSocket(options.port, 50, InetAddress.getLoopbackAddress());
+	    Thread acceptor = new Thread(() -> serve(server), "jack-daemon-socket");
+	    acceptor.setDaemon(true);
+	    acceptor.start();
+	    System.out.println("Listening for compile requests on " + server.getLocalSocketAddress());
+	}
+	System.out.println("Watching " + options.inputDir + " for changes");
+
+	while (running) {
+	    WatchKey key;
+	    try {
+		key = watcher.poll(500, TimeUnit.MILLISECONDS);
+	    } catch (InterruptedException e) {
+		break;
+	    }
+	    if (key == null) {
+		continue;
+	    }
+	    TreeSet<String> changed = new TreeSet<>();
+	    collect(key, changed);
+	    //Pick up the rest of a burst of events before compiling
+	    try {
+		while ((key = watcher.poll(SETTLE_MILLIS, TimeUnit.MILLISECONDS)) != null) {
+		    collect(key, changed);
+		}
+	    } catch (InterruptedException e) {
+		break;
+	    }
+	    if (!changed.isEmpty()) {
+		compile(new ArrayList<>(changed));
+	    }
+	}
+	watcher.close();
+    }
+
+    private void collect(WatchKey key, TreeSet<String> changed) throws IOException {
+	Path dir = (Path) key.watchable();
+	for (WatchEvent<?> event:key.pollEvents()) {
+	    if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+		//Lost track of what changed, so treat every file as changed
+		changed.addAll(JackCompiler.getFileNames(options.inputDir));
+		continue;
+	    }
+	    Path path = dir.resolve((Path) event.context());
+	    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(path)) {
+		registerAll(path);
+		changed.addAll(JackCompiler.getFileNames(path.toString()));
+	    } else if (path.toString().endsWith(".jack") && Files.isRegularFile(path)) {
+		changed.add(path.toString());
+	    }
+	}
+	key.reset();
+    }
+
+    private void registerAll(Path root) throws IOException {
+	try (Stream<Path> paths = Files.walk(root)) {
+	    for (Path dir:paths.filter(Files::isDirectory).collect(Collectors.toList())) {
+		dir.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+	    }
+	}
+    }
+
+    // Watcher and socket requests share the cache and the output files, so only one compile runs at a time
+    private synchronized List<CompileResult> compile(List<String> filenames) {
+	if (options.emitsAsm() || options.wholeProgram) {
+	    //The .asm and the whole-program passes cover every file, so it all gets compiled
+	    filenames = JackCompiler.findFiles(options.inputDir, ".jack");
+	}
+	System.out.println("Compiling " + filenames.size() + " files");
+	long start = System.nanoTime();
+	List<CompileResult> results = JackCompiler.compileAll(filenames, options, cache);
+	for (CompileResult r:results) {
+	    for (String note:r.getNotes()) {
+		System.out.println(note);
+	    }
+	    if (r.getError() != null) {
+		JackCompiler.reportError(r);
+	    }
+	}
+	if (cache != null) {
+	    try {
+		cache.save();
+	    } catch (IOException e) {
+		System.err.println("Could not write build cache: " + e.getMessage());
+	    }
+	}
+	long wallNanos = System.nanoTime() - start;
+	System.out.println("Compiled " + results.size() + " files in " + (wallNanos / 1000000) + " ms");
+	JackCompiler.finishProgram(options, results);
+	if (options.stats) {
+	    JackCompiler.printStats(results, options, new CompileStats(null, true), wallNanos);
+	}
+	return results;
+    }
+
+    private void serve(ServerSocket server) {
+	while (running) {
+	    try {
+		Socket client = server.accept();
+		Thread handler = new Thread(() -> handle(client), "jack-daemon-client");
+		handler.setDaemon(true);
+		handler.start();
+	    } catch (IOException e) {
+		if (running) {
+		    System.err.println("Request socket failed: " + e.getMessage());
+		}
+		return;
+	    }
+	}
+    }
+
+    // Why a file named in a request can't be compiled, or null if it can. The .vm is
+    // written next to the source, so only .jack files under the watched directory are taken.
+    private String checkRequested(String name) {
+	if (!name.endsWith(".jack")) {
+	    return "not a .jack file";
+	}
+	try {
+	    Path root = Paths.get(options.inputDir).toRealPath();
+	    Path file = Paths.get(name).toRealPath();
+	    if (!file.startsWith(root)) {
+		return "not under " + options.inputDir;
+	    }
+	    if (!Files.isRegularFile(file)) {
+		return "not a file";
+	    }
+	} catch (IOException | InvalidPathException e) {
+	    return "no such file";
+	}
+	return null;
+    }
+
+    private void handle(Socket client) {
+	try (Socket c = client;
+	     BufferedReader in = new BufferedReader(new InputStreamReader(c.getInputStream(), StandardCharsets.UTF_8));
+	     PrintWriter out = new PrintWriter(new OutputStreamWriter(c.getOutputStream(), StandardCharsets.UTF_8), true)) {
+	    String line;
+	    while ((line = in.readLine()) != null) {
+		String[] words = line.trim().split("\\s+");
+		if (words[0].equals("stop")) {
+		    out.println("done stopping");
+		    running = false;
+		    return;
+		} else if (words[0].equals("compile")) {
+		    long start = System.nanoTime();
+		    List<String> files = new ArrayList<>();
+		    int failed = 0;
+		    for (int i = 1; i < words.length; i++) {
+			String problem = checkRequested(words[i]);
+			if (problem != null) {
+			    out.println("error " + words[i] + ": " + problem);
+			    failed++;
+			} else {
+			    files.add(words[i]);
+			}
+		    }
+		    int requested = words.length - 1;
+		    if (requested == 0) {
+			files = JackCompiler.getFileNames(options.inputDir);
+			requested = files.size();
+		    }
+		    if (!files.isEmpty()) {
+			for (CompileResult r:compile(files)) {
+			    if (r.getError() != null) {
+				out.println("error " + r.getFileName() + ": " + r.getError());
+				failed++;
+			    } else {
+				out.println("ok " + r.getFileName() + " " + (r.getNanos() / 1000000));
+			    }
+			}
+		    }
+		    out.println("done " + requested + " files, " + failed + " failed, "
+				+ ((System.nanoTime() - start) / 1000000) + " ms");
+		} else {
+		    out.println("done unknown command: " + line);
+		}
+	    }
+	} catch (IOException e) {
+	    System.err.println("Request failed: " + e.getMessage());
+	}
+    }
+}
+
+// Compiles Jack source that is already in memory, for code that would otherwise
+// go through temp files, like test harnesses. Like the rest of the compiler it is
+// package-private in the unnamed package, so only code compiled next to this file
+// can use it. From a named package, copy this file into that package the way
+// bench/ does. It is not a public library API. An instance keeps its token arrays, symbol table and code buffer
+// and reuses them for the next compile, so compiling many small classes in a
+// row allocates little. Not thread-safe, use one instance per thread.
+// Of the options only -O and --pool-strings apply, there is no file to write.
+//
+//   InMemoryCompiler c = new InMemoryCompiler();
+//   String vm = c.compile("Main", source);    // null if it had errors
+//   if (vm == null) { for (String e:c.getErrors()) ... }
+class InMemoryCompiler {
+    private CompilerOptions options;
+    private Tokenizer t = new Tokenizer();
+    private SymbolTable st = new SymbolTable();
+    private VmCode code = new VmCode();
+    private StringBuilder text = new StringBuilder();
+    private Diagnostics diagnostics = new Diagnostics("");
+    private ArrayList<String> notes = new ArrayList<>();
+
+    public InMemoryCompiler() {
+	this(new CompilerOptions());
+    }
+
+    public InMemoryCompiler(CompilerOptions o) {
+	options = o;
+    }
+
+    // Compiles one class, 'name' is what errors are reported against.
+    // Returns the .vm text, or null if there were errors.
+    public String compile(String name, CharSequence source) {
+	begin(name);
+	t.lex(source);
+	return finish();
+    }
+
+    // Same, from UTF-8 bytes between the buffer's position and limit
+    public String compile(String name, ByteBuffer source) {
+	begin(name);
+	t.lex(source);
+	return finish();
+    }
+
+    private void begin(String name) {
+	diagnostics = new Diagnostics(name);
+	notes.clear();
+	t.reset(diagnostics);
+	code.clear();
+    }
+
+    private String finish() {
+	CompileParser cp = new CompileParser(t, st, options, code);
+	try {
+	    cp.compileClass();
+	} catch (IllegalStateException e) {
+	    t.error(t.getIndex(), e.getMessage());
+	}
+	if (diagnostics.hasErrors()) {
+	    return null;
+	}
+	VmCode result = code;
+	for (Map.Entry<String, Integer> e:cp.getRemovedCalls().entrySet()) {
+	    notes.add("Strength reduction in " + e.getKey() + ": " + e.getValue() + " multiply/divide calls removed");
+	}
+	if (options.optimize) {
+	    VmFlowGraph flow = new VmFlowGraph();
+	    result = flow.optimize(VmPeephole.optimize(code));
+	    notes.add("Optimised " + diagnostics.getFileName() + ": " + code.size() + " -> " + result.size() + " VM instructions");
+	    notes.add("Control flow of " + diagnostics.getFileName() + ": " + flow.branchesRemoved + " branches and "
+		      + flow.labelsRemoved + " labels removed");
+	}
+	text.setLength(0);
+	VmEmitter.write(result, text);
+	return text.toString();
+    }
+
+    // "name:line:column: message" for each error of the last compile
+    public List<String> getErrors() {
+	return diagnostics.getErrors();
+    }
+
+    // What -O did in the last compile, the lines the command line prints
+    public List<String> getNotes() {
+	return notes;
+    }
+
+    // Drops whatever the buffers have grown to, after an unusually big source
+    public void reset() {
+	t = new Tokenizer();
+	st = new SymbolTable();
+	code = new VmCode();
+	text = new StringBuilder();
+    }
+}
+
+// On-disk record of what was compiled, one manifest file per source directory.
+// Each line holds a source file name, the hash of its contents, the compiler
+// version that compiled it and the hash of the .vm file written for it.
+// A file is skipped when all three still match.
+class BuildCache {
+    static final String MANIFEST_NAME = ".jackcache";
+    static final String HEADER = "# jack build cache v1";
+
+    private String version;
+    // manifest directory -> (file name -> entry)
+    private ConcurrentHashMap<Path, ConcurrentHashMap<String, String[]>> loaded = new ConcurrentHashMap<>();
+    private ConcurrentHashMap<Path, ConcurrentHashMap<String, String[]>> current = new ConcurrentHashMap<>();
+    private AtomicInteger hits = new AtomicInteger();
+    private AtomicInteger misses = new AtomicInteger();
+
+    public BuildCache(String v) {
+	version = v;
+    }
+
+    public boolean isUpToDate(String file, String sourceHash, String outputPath) throws IOException {
+	Path source = Paths.get(file).toAbsolutePath();
+	String[] entry = manifestFor(source.getParent()).get(source.getFileName().toString());
+	Path output = Paths.get(outputPath);
+	if (entry != null && entry[0].equals(sourceHash) && entry[1].equals(version)
+	    && Files.isRegularFile(output) && entry[2].equals(hashFile(output))) {
+	    keep(source, entry);
+	    hits.incrementAndGet();
+	    return true;
+	}
+	misses.incrementAndGet();
+	return false;
+    }
+
+    public void record(String file, String sourceHash, String outputHash) {
+	Path source = Paths.get(file).toAbsolutePath();
+	keep(source, new String[]{sourceHash, version, outputHash});
+    }
+
+    private void keep(Path source, String[] entry) {
+	current.computeIfAbsent(source.getParent(), d -> new ConcurrentHashMap<>())
+	    .put(source.getFileName().toString(), entry);
+    }
+
+    private ConcurrentHashMap<String, String[]> manifestFor(Path dir) {
+	return loaded.computeIfAbsent(dir, BuildCache::load);
+    }
+
+    private static ConcurrentHashMap<String, String[]> load(Path dir) {
+	ConcurrentHashMap<String, String[]> entries = new ConcurrentHashMap<>();
+	Path manifest = dir.resolve(MANIFEST_NAME);
+	if (!Files.isRegularFile(manifest)) {
+	    return entries;
+	}
+	try {
+	    for (String line:Files.readAllLines(manifest, StandardCharsets.UTF_8)) {
+		String[] parts = line.split("\t");
+		if (line.startsWith("#") || parts.length != 4) {
+		    continue;
+		}
+		entries.put(parts[0], new String[]{parts[1], parts[2], parts[3]});
+	    }
+	} catch (IOException e) {
+	    //An unreadable manifest just means everything in the directory gets rebuilt
+	    System.err.println("Ignoring build cache " + manifest + ": " + e.getMessage());
+	    entries.clear();
+	}
+	return entries;
+    }
+
+    // Writes one manifest per directory that had files in this run. Files that
+    // failed to compile are left out, so they are compiled again next time.
+    // Each manifest goes to a temp file first and is then moved over the old
+    // one, so a crash leaves either the old or the new manifest, never half of one.
+    public void save() throws IOException {
+	for (Map.Entry<Path, ConcurrentHashMap<String, String[]>> dir:current.entrySet()) {
+	    StringBuilder b = new StringBuilder();
+	    b.append(HEADER + "\n");
+	    for (Map.Entry<String, String[]> e:new TreeMap<>(dir.getValue()).entrySet()) {
+		String[] v = e.getValue();
+		b.append(e.getKey() + "\t" + v[0] + "\t" + v[1] + "\t" + v[2] + "\n");
+	    }
+	    Path manifest = dir.getKey().resolve(MANIFEST_NAME);
+	    Path temp = ChannelOutput.createTemp(manifest);
+	    try {
+		Files.write(temp, b.toString().getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, manifest, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	    } finally {
+		Files.deleteIfExists(temp);
+	    }
+	}
+    }
+
+    public int getHits() {
+	return hits.get();
+    }
+    public int getMisses() {
+	return misses.get();
+    }
+
+    static String hashFile(Path path) throws IOException {
+	MessageDigest digest = newDigest();
+	try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+	    ByteBuffer buffer = ByteBuffer.allocate(Tokenizer.BUFFER_SIZE);
+	    while (channel.read(buffer) >= 0) {
+		buffer.flip();
+		digest.update(buffer);
+		buffer.clear();
+	    }
+	}
+	return toHex(digest.digest());
+    }
+
+    static MessageDigest newDigest() {
+	try {
+	    return MessageDigest.getInstance("SHA-256");
+	} catch (NoSuchAlgorithmException e) {
+	    throw new IllegalStateException("SHA-256 not available", e);
+	}
+    }
+
+    static String toHex(byte[] bytes) {
+	StringBuilder b = new StringBuilder();
+	for (byte x:bytes) {
+	    b.append(Character.forDigit((x >> 4) & 0xf, 16));
+	    b.append(Character.forDigit(x & 0xf, 16));
+	}
+	return b.toString();
+    }
+}
+
+class Tokenizer {
+    // Token kinds
+    static final byte KIND_KEYWORD = 0;
+    static final byte KIND_SYMBOL = 1;
+    static final byte KIND_IDENTIFIER = 2;
+    static final byte KIND_INT_CONST = 3;
+    static final byte KIND_STRING_CONST = 4;
+    static final String[] KIND_NAMES = {"keyword", "symbol", "identifier", "integerConstant", "StringConstant"};
+
+    // Keyword codes, the keyword's index in KEYWORDS
+    static final int KW_CLASS = 0;
+    static final int KW_CONSTRUCTOR = 1;
+    static final int KW_FUNCTION = 2;
+    static final int KW_METHOD = 3;
+    static final int KW_FIELD = 4;
+    static final int KW_STATIC = 5;
+    static final int KW_VAR = 6;
+    static final int KW_INT = 7;
+    static final int KW_CHAR = 8;
+    static final int KW_BOOLEAN = 9;
+    static final int KW_VOID = 10;
+    static final int KW_TRUE = 11;
+    static final int KW_FALSE = 12;
+    static final int KW_NULL = 13;
+    static final int KW_THIS = 14;
+    static final int KW_LET = 15;
+    static final int KW_DO = 16;
+    static final int KW_IF = 17;
+    static final int KW_ELSE = 18;
+    static final int KW_WHILE = 19;
+    static final int KW_RETURN = 20;
+
+    // Binary operator codes, OP_NONE for a token that is not one
+    static final int OP_NONE = 0;
+    static final int OP_ADD = 1;
+    static final int OP_SUB = 2;
+    static final int OP_MUL = 3;
+    static final int OP_DIV = 4;
+    static final int OP_AND = 5;
+    static final int OP_OR = 6;
+    static final int OP_LT = 7;
+    static final int OP_GT = 8;
+    static final int OP_EQ = 9;
+    static final byte[] OPERATORS = new byte[128];
+    static {
+	String ops = "+-*/&|<>=";
+	for (int k = 0; k < ops.length(); k++) {
+	    OPERATORS[ops.charAt(k)] = (byte) (OP_ADD + k);
+	}
+    }
+
+    // One String per symbol char, so symbols never need the intern table
+    static final String[] SYMBOL_STRINGS = new String[128];
+    static {
+	for (char c:"{}()[].,;+-*/&|<>=~".toCharArray()) {
+	    SYMBOL_STRINGS[c] = Character.toString(c);
+	}
+    }
+
+    //Tokens are kept struct-of-arrays style: token i is kinds[i] and the
+    //slice text[starts[i] .. starts[i]+lengths[i]). Only token text goes into
+    //text, comments and whitespace are never copied. codes[i] is the keyword
+    //code of a keyword and the char of a symbol, so the parser can switch on
+    //them without looking at the text. offsets[i] is where the token starts
+    //in the source, lineStarts turns that into a line and column for errors.
+    //That is about 20 bytes per token on typical code, where the old
+    //HashMap<Integer, String[]> needed about 128.
+    byte[] kinds;
+    byte[] codes;
+    int[] starts;
+    int[] lengths;
+    int[] offsets;
+    int tokenCount = 0;
+    char[] text;
+    int textLength = 0;
+    int[] lineStarts;
+    int lineCount = 1;      // lineStarts[0] is 0
+
+    //Lexer errors go here instead of stopping at the first one
+    Diagnostics diagnostics;
+
+    //Strings for token text are only made when getToken() asks for them,
+    //once per distinct text
+    String[] internTable = new String[256];
+    int internCount = 0;
+
+    int tokenIndex = 0;
+
+    // Lexer states
+    static final int LEX_NORMAL = 0;
+    static final int LEX_WORD = 1;
+    static final int LEX_STRING = 2;
+    static final int LEX_SLASH = 3;         // seen '/', could still start a comment
+    static final int LEX_LINE_COMMENT = 4;
+    static final int LEX_BLOCK_COMMENT = 5;
+    static final int LEX_BLOCK_STAR = 6;    // seen '*' inside a block comment
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    int lexState = LEX_NORMAL;
+    int currentStart = 0;     // start of the word or string being lexed in text
+    int currentOffset = 0;    // and where it starts in the source
+    int sourceOffset = 0;     // source position of the next char
+    CharsetDecoder decoder;   // made on first use, with its buffer
+    CharBuffer chars;
+
+    public Tokenizer (String filename) {
+	this(filename, new Diagnostics(filename));
+    }
+
+    //A second cursor over the tokens of 'source', for reading part of a file on another
+    //thread. The token arrays are shared, which is fine as they don't change after lexing.
+    //The intern table, the index and the diagnostics are its own.
+    public Tokenizer (Tokenizer source, Diagnostics _diagnostics) {
+	diagnostics = _diagnostics;
+	kinds = source.kinds;
+	codes = source.codes;
+	starts = source.starts;
+	lengths = source.lengths;
+	offsets = source.offsets;
+	tokenCount = source.tokenCount;
+	text = source.text;
+	textLength = source.textLength;
+	lineStarts = source.lineStarts;
+	lineCount = source.lineCount;
+    }
+
+    public Tokenizer (String filename, Diagnostics _diagnostics) {
+	this();
+	diagnostics = _diagnostics;
+	//Stream the file through fixed size buffers and lex it in a single pass,
+	//so memory for the source stays the same no matter how big the file is
+	try (FileChannel channel = FileChannel.open(Paths.get(filename), StandardOpenOption.READ)) {
+	    ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE);
+	    boolean endOfInput = false;
+	    while (!endOfInput) {
+		endOfInput = channel.read(bytes) < 0;
+		bytes.flip();
+		decode(bytes, endOfInput);
+		bytes.compact();
+	    }
+	    finishLexing();
+	} catch (IOException e) {
+	    diagnostics.error(0, 0, "an error reading file: "+e.getMessage());
+	}
+	tokenIndex = 0;
+    }
+
+    //No tokens yet, for source that is already in memory: reset, then lex.
+    //The arrays it grows are kept for the next source.
+    public Tokenizer () {
+	kinds = new byte[1024];
+	codes = new byte[1024];
+	starts = new int[1024];
+	lengths = new int[1024];
+	offsets = new int[1024];
+	text = new char[8 * 1024];
+	lineStarts = new int[256];
+    }
+
+    //Forgets every token, ready to lex another source
+    public void reset(Diagnostics _diagnostics) {
+	diagnostics = _diagnostics;
+	tokenCount = 0;
+	textLength = 0;
+	lineCount = 1;
+	tokenIndex = 0;
+	lexState = LEX_NORMAL;
+	currentStart = 0;
+	currentOffset = 0;
+	sourceOffset = 0;
+	if (internCount > 0) {
+	    Arrays.fill(internTable, null);
+	    internCount = 0;
+	}
+	if (decoder != null) {
+	    decoder.reset();
+	}
+    }
+
+    public void lex(CharSequence source) {
+	for (int i = 0; i < source.length(); i++) {
+	    lex(source.charAt(i));
+	}
+	finishLexing();
+	tokenIndex = 0;
+    }
+
+    //UTF-8 source between the buffer's position and limit. Leaves the position at the limit.
+    public void lex(ByteBuffer source) {
+	decode(source, true);
+	finishLexing();
+	tokenIndex = 0;
+    }
+
+    //Decodes as much of 'bytes' as it can and lexes the chars. Without endOfInput
+    //a char cut in half at the end stays in 'bytes' for next time.
+    private void decode(ByteBuffer bytes, boolean endOfInput) {
+	if (decoder == null) {
+	    chars = CharBuffer.allocate(BUFFER_SIZE);
+	    decoder = StandardCharsets.UTF_8.newDecoder()
+		.onMalformedInput(CodingErrorAction.REPLACE)
+		.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+	CoderResult result;
+	do {
+	    result = decoder.decode(bytes, chars, endOfInput);
+	    if (endOfInput && result.isUnderflow()) {
+		result = decoder.flush(chars);
+	    }
+	    chars.flip();
+	    while (chars.hasRemaining()) {
+		lex(chars.get());
+	    }
+	    chars.clear();
+	} while (result.isOverflow());
+    }
+
+    private void lex(char c) {
+	int at = sourceOffset++;
+	if (c == '\n') {
+	    if (lineCount == lineStarts.length) {
+		lineStarts = Arrays.copyOf(lineStarts, lineCount * 2);
+	    }
+	    lineStarts[lineCount++] = sourceOffset;
+	}
+	switch (lexState) {
+	    case LEX_STRING:
+		if (c == '\n' || c == '\r') {
+		    //Report it and end the constant here, so the next line lexes normally
+		    report(currentOffset, "String constant not closed on its line: " + currentText());
+		    addToken(KIND_STRING_CONST, currentStart, textLength - currentStart, currentOffset);
+		    lexState = LEX_NORMAL;
+		    return;
+		}
+		appendText(c);
+		if (c == '"') {
+		    //End token
+		    addToken(KIND_STRING_CONST, currentStart, textLength - currentStart, currentOffset);
+		    lexState = LEX_NORMAL;
+		}
+		return;
+	    case LEX_LINE_COMMENT:
+		if (c == '\n') {
+		    lexState = LEX_NORMAL;
+		}
+		return;
+	    case LEX_BLOCK_COMMENT:
+		if (c == '*') {
+		    lexState = LEX_BLOCK_STAR;
+		}
+		return;
+	    case LEX_BLOCK_STAR:
+		if (c == '/') {
+		    lexState = LEX_NORMAL;
+		} else if (c != '*') {
+		    lexState = LEX_BLOCK_COMMENT;
+		}
+		return;
+	    case LEX_SLASH:
+		if (c == '/') {
+		    lexState = LEX_LINE_COMMENT;
+		    return;
+		} else if (c == '*') {
+		    lexState = LEX_BLOCK_COMMENT;
+		    return;
+		}
+		//It was the division symbol after all
+		addSymbol('/', at - 1);
+		lexState = LEX_NORMAL;
+		break;
+	    default:
+		break;
+	}
+
+	//Rest of the chars:
+	if (c == '"') {
+	    endWord();
+	    currentStart = textLength;
+	    currentOffset = at;
+	    appendText(c);
+	    lexState = LEX_STRING;
+	} else if (c == '/') {
+	    endWord();
+	    lexState = LEX_SLASH;
+	} else if (c < 128 && SYMBOL_STRINGS[c] != null) {
+	    endWord();
+	    addSymbol(c, at);
+	} else if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+	    endWord();
+	} else {
+	    if (lexState != LEX_WORD) {
+		currentStart = textLength;
+		currentOffset = at;
+		lexState = LEX_WORD;
+	    }
+	    appendText(c);
+	}
+    }
+
+    private void endWord() {
+	if (lexState == LEX_WORD) {
+	    int length = textLength - currentStart;
+	    byte kind = classifyWord(text, currentStart, length);
+	    addToken(kind, currentStart, length, currentOffset);
+	    if (kind == KIND_KEYWORD) {
+		codes[tokenCount - 1] = (byte) keywordCode(text, currentStart, length);
+	    } else if (kind == KIND_INT_CONST && length >= 5 && intValue(text, currentStart, length) > 32767) {
+		report(currentOffset, "Integer constant out of range 0..32767: " + currentText());
+	    }
+	    lexState = LEX_NORMAL;
+	}
+    }
+
+    private void finishLexing() {
+	switch (lexState) {
+	    case LEX_STRING:
+		report(currentOffset, "String constant not closed at end of file: " + currentText());
+		addToken(KIND_STRING_CONST, currentStart, textLength - currentStart, currentOffset);
+		break;
+	    case LEX_SLASH:
+		addSymbol('/', sourceOffset - 1);
+		break;
+	    default:
+		endWord();
+		break;
+	}
+	lexState = LEX_NORMAL;
+    }
+
+    private String currentText() {
+	return new String(text, currentStart, textLength - currentStart);
+    }
+
+    private void appendText(char c) {
+	if (textLength == text.length) {
+	    text = Arrays.copyOf(text, text.length * 2);
+	}
+	text[textLength++] = c;
+    }
+
+    private void addSymbol(char c, int at) {
+	int start = textLength;
+	appendText(c);
+	addToken(KIND_SYMBOL, start, 1, at);
+	codes[tokenCount - 1] = (byte) c;
+    }
+
+    private void addToken(byte kind, int start, int length, int at) {
+	if (tokenCount == kinds.length) {
+	    int newSize = kinds.length * 2;
+	    kinds = Arrays.copyOf(kinds, newSize);
+	    codes = Arrays.copyOf(codes, newSize);
+	    starts = Arrays.copyOf(starts, newSize);
+	    lengths = Arrays.copyOf(lengths, newSize);
+	    offsets = Arrays.copyOf(offsets, newSize);
+	}
+	kinds[tokenCount] = kind;
+	codes[tokenCount] = 0;
+	starts[tokenCount] = start;
+	lengths[tokenCount] = length;
+	offsets[tokenCount] = at;
+	tokenCount++;
+    }
+
+    //Returns the one String for this slice of text, making it the first time
+    String internSlice(int start, int length) {
+	int h = 0;
+	for (int i = start; i < start + length; i++) {
+	    h = 31 * h + text[i];
+	}
+	int mask = internTable.length - 1;
+	int slot = h & mask;
+	String s;
+	while ((s = internTable[slot]) != null) {
+	    if (s.hashCode() == h && sameText(s, start, length)) {
+		return s;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	s = new String(text, start, length);
+	internTable[slot] = s;
+	internCount++;
+	if (internCount * 2 > internTable.length) {
+	    growInternTable();
+	}
+	return s;
+    }
+
+    private boolean sameText(String s, int start, int length) {
+	if (s.length() != length) {
+	    return false;
+	}
+	for (int i = 0; i < length; i++) {
+	    if (s.charAt(i) != text[start + i]) {
+		return false;
+	    }
+	}
+	return true;
+    }
+
+    private void growInternTable() {
+	String[] old = internTable;
+	internTable = new String[old.length * 2];
+	int mask = internTable.length - 1;
+	for (String s:old) {
+	    if (s != null) {
+		int slot = s.hashCode() & mask;
+		while (internTable[slot] != null) {
+		    slot = (slot + 1) & mask;
+		}
+		internTable[slot] = s;
+	    }
+	}
+    }
+
+    //Classifies a word (anything that is not a symbol or string constant)
+    //without allocating: digits are scanned by hand and keywords are found
+    //with a perfect hash over first char, last char and length.
+    //The range of an integer constant is checked by the lexer, which can say where it is.
+    static byte classifyWord(char[] s, int start, int length) {
+	char first = s[start];
+	if (first >= '0' && first <= '9') {
+	    for (int i = start; i < start + length; i++) {
+		char c = s[i];
+		if (c < '0' || c > '9') {
+		    return KIND_IDENTIFIER;
+		}
+	    }
+	    return KIND_INT_CONST;
+	}
+	if (keywordCode(s, start, length) >= 0) {
+	    return KIND_KEYWORD;
+	}
+	return KIND_IDENTIFIER;
+    }
+
+    static final String[] KEYWORDS = {"class", "constructor", "function", "method", "field", "static", "var",
+				      "int", "char", "boolean", "void", "true", "false", "null", "this",
+				      "let", "do", "if", "else", "while", "return"};
+    static final char[][] KEYWORD_CHARS = new char[KEYWORDS.length][];
+    static final byte[] KEYWORD_SLOTS = new byte[64];   // keyword code + 1, 0 for an empty slot
+    static {
+	for (int k = 0; k < KEYWORDS.length; k++) {
+	    KEYWORD_CHARS[k] = KEYWORDS[k].toCharArray();
+	    int slot = keywordHash(KEYWORD_CHARS[k], 0, KEYWORD_CHARS[k].length);
+	    if (KEYWORD_SLOTS[slot] != 0) {
+		throw new IllegalStateException("Keyword hash collision: " + KEYWORDS[k]);
+	    }
+	    KEYWORD_SLOTS[slot] = (byte) (k + 1);
+	}
+    }
+
+    static int keywordHash(char[] s, int start, int length) {
+	return (2 * s[start] + s[start + length - 1] + 6 * length) & 63;
+    }
+
+    //Index of the keyword in KEYWORDS, or -1 if the word is not a keyword
+    static int keywordCode(char[] s, int start, int length) {
+	int code = KEYWORD_SLOTS[keywordHash(s, start, length)] - 1;
+	if (code < 0) {
+	    return -1;
+	}
+	char[] keyword = KEYWORD_CHARS[code];
+	if (keyword.length != length) {
+	    return -1;
+	}
+	for (int i = 0; i < length; i++) {
+	    if (keyword[i] != s[start + i]) {
+		return -1;
+	    }
+	}
+	return code;
+    }
+
+    public String getToken() {
+	checkIndex(tokenIndex);
+	if (kinds[tokenIndex] == KIND_SYMBOL) {
+	    return SYMBOL_STRINGS[text[starts[tokenIndex]]];
+	}
+	return internSlice(starts[tokenIndex], lengths[tokenIndex]);
+    }
+
+    public String getType() {
+	checkIndex(tokenIndex);
+	return KIND_NAMES[kinds[tokenIndex]];
+    }
+
+    public byte getKind() {
+	checkIndex(tokenIndex);
+	return kinds[tokenIndex];
+    }
+
+    //Keyword code of the current token, -1 if it is not a keyword
+    public int getKeyword() {
+	checkIndex(tokenIndex);
+	return kinds[tokenIndex] == KIND_KEYWORD ? codes[tokenIndex] : -1;
+    }
+
+    //The current symbol, 0 if the token is not a symbol
+    public char getSymbol() {
+	checkIndex(tokenIndex);
+	return kinds[tokenIndex] == KIND_SYMBOL ? (char) codes[tokenIndex] : 0;
+    }
+
+    public boolean isSymbol(char c) {
+	return getSymbol() == c;
+    }
+
+    //Binary operator code of the current token, OP_NONE if it is not an operator
+    public int getOperator() {
+	return OPERATORS[getSymbol()];
+    }
+
+    //Value of an integer constant, read straight from the text
+    public int getIntValue() {
+	checkIndex(tokenIndex);
+	return intValue(text, starts[tokenIndex], lengths[tokenIndex]);
+    }
+
+    //Stops counting past 32767, so a long run of digits can't overflow
+    static int intValue(char[] s, int start, int length) {
+	int value = 0;
+	for (int i = start; i < start + length && value <= 32767; i++) {
+	    value = value * 10 + (s[i] - '0');
+	}
+	return value;
+    }
+
+    public int getIndex() {
+	return tokenIndex;
+    }
+
+    public void setIndex(int i) {
+	tokenIndex = i;
+    }
+
+    public Diagnostics getDiagnostics() {
+	return diagnostics;
+    }
+
+    //Records an error at token i, or at the last token if i is past the end
+    public void error(int i, String message) {
+	if (tokenCount == 0) {
+	    diagnostics.error(1, 1, message);
+	    return;
+	}
+	report(offsets[Math.min(i, tokenCount - 1)], message);
+    }
+
+    private void report(int offset, String message) {
+	//The line is the last one starting at or before offset
+	int lo = 0;
+	int hi = lineCount - 1;
+	while (lo < hi) {
+	    int mid = (lo + hi + 1) >>> 1;
+	    if (lineStarts[mid] <= offset) {
+		lo = mid;
+	    } else {
+		hi = mid - 1;
+	    }
+	}
+	diagnostics.error(lo + 1, offset - lineStarts[lo] + 1, message);
+    }
+
+    public void advance() {
+	tokenIndex++;
+    }
+    
+    public boolean hasMoreTokens() {
+	if (tokenIndex < tokenCount) {
+	    return true;
+	} else return false;
+    }
+    public String checkNext() {
+	if (tokenIndex + 1 < tokenCount) {
+	    tokenIndex++;
+	    String next = getToken();
+	    tokenIndex--;
+	    return next;
+	} else return "nullNext";
+    }
+    private void checkIndex(int i) {
+	if (i >= tokenCount) {
+	    throw new IllegalStateException("Unexpected end of file after token " + tokenCount);
+	}
+    }
+    public int getTokenCount() {
+	return tokenCount;
+    }
+
+    public void resetIndex() {
+	tokenIndex = 0;
+    } 
+}
+
+// What the first stage of CompileParser makes of a class
+class ClassNode {
+    String name;
+    ArrayList<SubroutineNode> subroutines = new ArrayList<>();
+}
+
+class SubroutineNode {
+    int kind;           // Tokenizer.KW_CONSTRUCTOR, KW_FUNCTION or KW_METHOD
+    String name;
+    ArrayList<String[]> parameters = new ArrayList<>();   // {name, type}
+    ArrayList<String[]> locals = new ArrayList<>();
+    int bodyStart;      // token index of the first statement
+    int bodyEnd;        // and of the '}' that closes the body
+    int labelBase;      // first if/while label number, counted from the start of the class
+    int pooledBase;     // same for the labels of pooled literals
+}
+
+// Compiles one class in two stages. parseClass reads the class variables into the
+// symbol table and each subroutine's declarations into a SubroutineNode, which keeps
+// its body as a range of tokens. Then the bodies are compiled. With --jobs they are
+// split between CompileParsers of their own, each with its own symbol table scope,
+// code and token cursor, that run on the worker pool. The code is put together in
+// source order and label numbers are worked out in the first stage, so the output
+// doesn't depend on which body finished first.
+class CompileParser {
+    Tokenizer t;
+    VmCode vm;
+    SymbolTable st;
+    
+    String className;
+    int runningLoopIndex;
+
+    //-O: fold constant expressions and leave out code that can never run
+    boolean optimize;
+    //Whether the statement(s) just compiled can finish normally, false after a return
+    boolean completes = true;
+    //-O: Math.multiply/divide calls replaced by strength reduction, per function
+    static final int MAX_MULTIPLY_STEPS = 8;
+    LinkedHashMap<String, Integer> removedCalls = new LinkedHashMap<>();
+    String functionName;
+
+    //--pool-strings: literals that appear more than once or inside a loop are built once,
+    //into a static slot after the class's own statics. The others stay inline, pooling
+    //them would only add code. Slots are given out by parseClass, in source order.
+    boolean poolStrings;
+    HashMap<String, Integer> literalCounts = new HashMap<>();
+    LinkedHashMap<String, Integer> stringPool = new LinkedHashMap<>();
+    int pooledUses = 0;
+    int loopDepth = 0;
+
+    //--jobs above 1: compile subroutine bodies in parallel, when already on a fork/join pool.
+    //They go to the pool in runs of about TOKENS_PER_TASK tokens, so a class of many small
+    //subroutines doesn't pay for a task and a parser each.
+    boolean parallel;
+    static final int TOKENS_PER_TASK = 4096;
+    //--stats: bytes allocated compiling bodies on other threads, see compileSubroutines
+    boolean measure;
+    long workerAllocated;
+
+    //Stands in for an undeclared name once it has been reported, so code generation can go on
+    static final SymbolTableEntry UNDECLARED = new SymbolTableEntry("?", "int", VmCode.LOCAL, 0);
+
+    public CompileParser (Tokenizer _t, SymbolTable _st) {
+	this(_t, _st, new CompilerOptions());
+    }
+
+    public CompileParser (Tokenizer _t, SymbolTable _st, CompilerOptions options) {
+	this(_t, _st, options, new VmCode());
+    }
+
+    // Compiles into 'code', which should be empty
+    public CompileParser (Tokenizer _t, SymbolTable _st, CompilerOptions options, VmCode code) {
+	t = _t;
+	vm = code;
+	st = _st;
+	optimize = options.optimize;
+	poolStrings = options.poolStrings;
+	parallel = options.jobs > 1;
+	measure = options.stats;
+	runningLoopIndex = 0;
+	if (poolStrings) {
+	    countLiterals();
+	}
+    }
+
+    // A parser for some of the subroutine bodies of the class 'parent' is compiling
+    CompileParser (CompileParser parent) {
+	t = new Tokenizer(parent.t, new Diagnostics(parent.t.getDiagnostics().getFileName()));
+	vm = new VmCode();
+	st = new SymbolTable(parent.st);
+	className = parent.className;
+	optimize = parent.optimize;
+	poolStrings = parent.poolStrings;
+	literalCounts = parent.literalCounts;
+	stringPool = parent.stringPool;
+    }
+
+    private void countLiterals() {
+	while (t.hasMoreTokens()) {
+	    if (t.getKind() == Tokenizer.KIND_STRING_CONST) {
+		literalCounts.merge(t.getToken(), 1, Integer::sum);
+	    }
+	    t.advance();
+	}
+	t.resetIndex();
+    }
+    
+
+    public String getFileStr() {
+	return VmEmitter.toText(vm);
+    }
+
+    public VmCode getCode() {
+	return vm;
+    }
+
+    public void compileClass() {
+	st.resetClass();
+	ClassNode node = parseClass();
+	if (node == null) {
+	    return;
+	}
+	compileSubroutines(node.subroutines);
+	if (!stringPool.isEmpty()) {
+	    compileStringPool();
+	}
+    } 
+
+    // First stage: everything but the statements
+    ClassNode parseClass() {
+	if (t.getKeyword() != Tokenizer.KW_CLASS) {
+	    t.error(t.getIndex(), "Class defined unproperly: "+t.getToken());
+	    return null;
+	}
+	ClassNode node = new ClassNode();
+	t.advance();
+	className = t.getToken();
+	node.name = className;
+	t.advance();
+	t.advance();
+	//class variables
+	while (t.getKeyword() == Tokenizer.KW_FIELD || t.getKeyword() == Tokenizer.KW_STATIC){
+	    compileClassVarDec();
+	}
+	while (t.getKeyword() == Tokenizer.KW_CONSTRUCTOR || t.getKeyword() == Tokenizer.KW_FUNCTION || t.getKeyword() == Tokenizer.KW_METHOD) {
+	    node.subroutines.add(parseSubroutine());
+	}
+	return node;
+    }
+
+    // Second stage. With a pool to run on, runs of subroutines are compiled by parsers
+    // of their own and their code is joined in source order.
+    void compileSubroutines(List<SubroutineNode> subroutines) {
+	List<List<SubroutineNode>> runs = new ArrayList<>();
+	int from = 0;
+	while (from < subroutines.size()) {
+	    int to = from;
+	    int tokens = 0;
+	    while (to < subroutines.size() && tokens < TOKENS_PER_TASK) {
+		tokens += subroutines.get(to).bodyEnd - subroutines.get(to).bodyStart;
+		to++;
+	    }
+	    runs.add(subroutines.subList(from, to));
+	    from = to;
+	}
+	if (!parallel || runs.size() < 2 || !ForkJoinTask.inForkJoinPool()) {
+	    for (SubroutineNode sub:subroutines) {
+		compileSubroutine(sub);
+	    }
+	    return;
+	}
+	List<CompileParser> parsers = new ArrayList<>();
+	List<ForkJoinTask<?>> tasks = new ArrayList<>();
+	for (List<SubroutineNode> run:runs) {
+	    CompileParser p = new CompileParser(this);
+	    parsers.add(p);
+	    tasks.add(ForkJoinTask.adapt(() -> {
+		long before = measure ? CompileStats.threadAllocated() : 0;
+		for (SubroutineNode sub:run) {
+		    p.compileSubroutine(sub);
+		}
+		if (measure) {
+		    p.workerAllocated = CompileStats.threadAllocated() - before;
+		}
+	    }));
+	}
+	//The stats only see this thread. Add what every run allocated, wherever it ran, and take
+	//off what this thread allocated while waiting: its share of the runs, already counted,
+	//and any work it took from other files meanwhile, which those files count themselves.
+	long waitStart = measure ? CompileStats.threadAllocated() : 0;
+	ForkJoinTask.invokeAll(tasks);
+	if (measure) {
+	    workerAllocated -= CompileStats.threadAllocated() - waitStart;
+	}
+	for (CompileParser p:parsers) {
+	    workerAllocated += p.workerAllocated;
+	    vm.append(p.vm);
+	    for (Map.Entry<String, Integer> e:p.removedCalls.entrySet()) {
+		removedCalls.merge(e.getKey(), e.getValue(), Integer::sum);
+	    }
+	    st.countLookups(p.st.getLookupCount());
+	    t.getDiagnostics().addAll(p.t.getDiagnostics());
+	}
+    }
+
+    //The function that fills in every pooled literal of the class, called by the first use of any of them.
+    //':' can't be in a Jack name, so it won't clash with a real subroutine.
+    void compileStringPool() {
+	vm.function(vm.name(className, "strings:init"), 0);
+	int base = st.getStaticCount();
+	for (Map.Entry<String, Integer> e:stringPool.entrySet()) {
+	    compileStringBuild(e.getKey());
+	    vm.pop(VmCode.STATIC, base + e.getValue());
+	}
+	vm.push(VmCode.CONSTANT, 0);
+	vm.op(VmCode.RETURN);
+    }
+
+    //A pooled literal is read from its static slot, which is 0 until the pool is built
+    void compilePooledString(String s) {
+	int slot = stringPool.get(s);
+	int index = st.getStaticCount() + slot;
+	int ready = vm.name(className + ":str" + pooledUses);
+	pooledUses++;
+	vm.push(VmCode.STATIC, index);
+	vm.ifGoto(ready);
+	vm.call(vm.name(className, "strings:init"), 0);
+	vm.pop(VmCode.TEMP, 0);
+	vm.label(ready);
+	vm.push(VmCode.STATIC, index);
+    }
+
+    //Create new String object and leave its addr on the stack
+    void compileStringBuild(String s) {
+	vm.push(VmCode.CONSTANT, s.length());
+	vm.call(vm.name("String.new"), 1);
+	int appendChar = vm.name("String.appendChar");
+	for (int k = 0; k < s.length(); k++) {
+	    vm.push(VmCode.CONSTANT, charCode(s.charAt(k)));
+	    vm.call(appendChar, 2);
+	}
+    }
+
+    //The Hack character set matches ASCII for the printable characters, the only ones a literal can hold
+    static int charCode(char c) {
+	if (c < ' ' || c > '~') {
+	    throw new IllegalStateException("Character not in the Jack character set: " + (int) c);
+	}
+	return c;
+    }
+
+    void compileClassVarDec() {
+	byte dest = t.getKeyword() == Tokenizer.KW_FIELD ? VmCode.THIS : VmCode.STATIC;
+
+	t.advance();
+	String type = t.getToken();
+
+	t.advance();
+	String name = t.getToken();
+	//Insert to classtable
+	st.insertClassEntry(name, type, dest);
+	//Check for multiple var declaration
+	t.advance();
+	while (!t.isSymbol(';')) {
+	    t.advance();
+	    name = t.getToken();
+	    st.insertClassEntry(name, type, dest);
+	    t.advance();
+	}
+	t.advance();
+    }
+
+    SubroutineNode parseSubroutine() {
+	SubroutineNode sub = new SubroutineNode();
+	sub.kind = t.getKeyword();
+	t.advance();
+
+	// 'void' or type
+	t.advance();
+
+	// subroutineName
+	sub.name = t.getToken();
+	t.advance();
+
+	// '(' parameterList ')'
+	t.advance();
+	parseParameterList(sub);
+	t.advance();
+	
+	t.advance();
+	// varDec*
+	while (t.getKeyword() == Tokenizer.KW_VAR) {
+	    parseVarDec(sub);
+	}
+	sub.bodyStart = t.getIndex();
+	skipBody(sub);
+	sub.bodyEnd = t.getIndex();
+	t.advance();
+	return sub;
+    }
+
+    void parseParameterList(SubroutineNode sub) {
+	// parameterList: ((type varName) (',' type varName)*)?
+	String type;
+	String name;
+	while (!t.isSymbol(')')) { // stop at closing parenthesis
+	    if (t.isSymbol(',')) {
+		// ',' in list
+	    } else {
+		// type varName
+		type = t.getToken();
+		t.advance();
+		// varName
+		name = t.getToken();
+		sub.parameters.add(new String[] {name, type});
+	    }
+	    t.advance();
+	}
+    }
+
+    void parseVarDec(SubroutineNode sub) {
+	t.advance();
+
+	// type
+	String type = t.getToken();
+	t.advance();
+
+	// varName
+	String name = t.getToken();
+	t.advance();
+	
+	sub.locals.add(new String[] {name, type});
+	// (',' varName)*
+	while (t.isSymbol(',')) {
+	    t.advance();
+	    name = t.getToken();
+	    sub.locals.add(new String[] {name, type});
+	    t.advance();
+	}
+	t.advance();
+    }
+
+    //Moves to the '}' that closes the body. On the way counts what the body will number
+    //(if/while labels and pooled literal uses) and gives pooled literals their slots,
+    //the same way compiling the bodies one after the other would.
+    void skipBody(SubroutineNode sub) {
+	sub.labelBase = runningLoopIndex;
+	sub.pooledBase = pooledUses;
+	int depth = 0;
+	ArrayDeque<Integer> loopEnds = new ArrayDeque<>();   // depth each open while's body closes back to
+	while (depth > 0 || !t.isSymbol('}')) {
+	    switch (t.getKind()) {
+		case Tokenizer.KIND_KEYWORD:
+		    int keyword = t.getKeyword();
+		    if (keyword == Tokenizer.KW_WHILE) {
+			//Its condition counts as inside the loop too
+			loopEnds.push(depth);
+			loopDepth++;
+		    }
+		    if (keyword == Tokenizer.KW_WHILE || keyword == Tokenizer.KW_IF) {
+			runningLoopIndex++;
+		    }
+		    break;
+		case Tokenizer.KIND_SYMBOL:
+		    char symbol = t.getSymbol();
+		    if (symbol == '{') {
+			depth++;
+		    } else if (symbol == '}') {
+			depth--;
+			while (!loopEnds.isEmpty() && loopEnds.peek() == depth) {
+			    loopEnds.pop();
+			    loopDepth--;
+			}
+		    }
+		    break;
+		case Tokenizer.KIND_STRING_CONST:
+		    String s = t.getToken();
+		    if (poolStrings && (loopDepth > 0 || literalCounts.get(s) > 1)) {
+			stringPool.putIfAbsent(s, stringPool.size());
+			pooledUses++;
+		    }
+		    break;
+		default:
+		    break;
+	    }
+	    t.advance();
+	}
+	loopDepth = 0;
+    }
+
+    // Second stage for one subroutine, on whichever thread gets it
+    void compileSubroutine(SubroutineNode sub) {
+	runningLoopIndex = sub.labelBase;
+	pooledUses = sub.pooledBase;
+	st.resetSubroutine();
+	if (sub.kind == Tokenizer.KW_METHOD){
+	    st.insertSubroutineEntry("this", className, VmCode.ARGUMENT);
+	}
+	for (String[] p:sub.parameters) {
+	    st.insertSubroutineEntry(p[0], p[1], VmCode.ARGUMENT);
+	}
+	for (String[] l:sub.locals) {
+	    st.insertSubroutineEntry(l[0], l[1], VmCode.LOCAL);
+	}
+	functionName = className + "." + sub.name;
+	vm.function(vm.name(className, sub.name), st.getLocalCount());
+	if (sub.kind == Tokenizer.KW_CONSTRUCTOR) {
+	    vm.push(VmCode.CONSTANT, st.getFieldCount());
+	    vm.call(vm.name("Memory.alloc"), 1);
+	    vm.pop(VmCode.POINTER, 0);
+	}
+	if (sub.kind == Tokenizer.KW_METHOD) {
+	    vm.push(VmCode.ARGUMENT, 0);
+	    vm.pop(VmCode.POINTER, 0);
+	}
+	// statements
+	t.setIndex(sub.bodyStart);
+	try {
+	    compileStatements();
+	    if (t.getIndex() != sub.bodyEnd) {
+		t.error(t.getIndex(), "Body of " + functionName + " does not end where its braces do");
+	    }
+	} catch (IllegalStateException e) {
+	    t.error(t.getIndex(), e.getMessage());
+	}
+    }
+
+    void compileStatements() {
+	// statement*
+	int deadFrom = -1;
+	while (!t.isSymbol('}')) {
+	    compileStatement();
+	    if (optimize && deadFrom < 0 && !completes) {
+		//Everything after this is unreachable, still parse it but drop the code
+		deadFrom = vm.size();
+	    }
+	}
+	if (deadFrom >= 0) {
+	    vm.truncate(deadFrom);
+	}
+	completes = deadFrom < 0;
+    }
+
+    void compileStatement() {
+	// Determines the type of statement and calls the appropriate method
+	completes = true;
+	switch (t.getKeyword()) {
+	    case Tokenizer.KW_LET:
+		compileLet();
+		break;
+	    case Tokenizer.KW_IF:
+		compileIf();
+		break;
+	    case Tokenizer.KW_WHILE:
+		compileWhile();
+		break;
+	    case Tokenizer.KW_DO:
+		compileDo();
+		break;
+	    case Tokenizer.KW_RETURN:
+		compileReturn();
+		break;
+	    default:
+		t.error(t.getIndex(), "Unexpected statement: " + t.getToken());
+		//Skip to the end of it and carry on with the next one
+		while (!t.isSymbol(';') && !t.isSymbol('}')) {
+		    t.advance();
+		}
+		if (t.isSymbol(';')) {
+		    t.advance();
+		}
+		break;
+	}
+    }
+
+    //The entry for a variable, reporting it at 'token' if it was never declared
+    SymbolTableEntry resolve(String name, int token) {
+	SymbolTableEntry ste = st.lookup(name);
+	if (ste == null) {
+	    t.error(token, "Identifier not found: " + name);
+	    return UNDECLARED;
+	}
+	return ste;
+    }
+
+    //How far back setThat looks for the push base; pop pointer 1 it can reuse
+    static final int THAT_LOOKBACK = 32;
+
+    //Points that at the array in 'base' for a constant index access. Under -O
+    //that is often still pointing there from the access before: look back over
+    //the straight-line code for push base; pop pointer 1 with nothing since
+    //that could have moved pointer 1 or changed base. Labels, jumps and calls
+    //end the search, so does any write to base, and for a field base any pop
+    //that, which may be the object itself seen as an array.
+    void setThat(SymbolTableEntry base) {
+	int segment = base.getSegment();
+	int index = base.getIndex();
+	int stop = Math.max(1, vm.size() - THAT_LOOKBACK);
+	for (int i = vm.size() - 1; i >= stop; i--) {
+	    byte op = vm.ops[i];
+	    if (op >= VmCode.LABEL) {
+		break;
+	    }
+	    if (op != VmCode.POP) {
+		continue;
+	    }
+	    byte popped = vm.segments[i];
+	    if (popped == VmCode.POINTER && vm.operands[i] == 1) {
+		if (vm.ops[i - 1] == VmCode.PUSH && vm.segments[i - 1] == segment
+		    && vm.operands[i - 1] == index && segment != VmCode.CONSTANT) {
+		    return;
+		}
+		break;
+	    }
+	    if (popped == VmCode.POINTER || (popped == segment && vm.operands[i] == index)
+		|| (popped == VmCode.THAT && segment == VmCode.THIS)) {
+		break;
+	    }
+	}
+	vm.push(base);
+	vm.pop(VmCode.POINTER, 1);
+    }
+
+    //Whether the code in [from, to) uses that or pointer, or calls anything
+    boolean touchesThat(int from, int to) {
+	for (int i = from; i < to; i++) {
+	    byte op = vm.ops[i];
+	    if (op == VmCode.CALL) {
+		return true;
+	    }
+	    if ((op == VmCode.PUSH || op == VmCode.POP)
+		&& (vm.segments[i] == VmCode.THAT || vm.segments[i] == VmCode.POINTER)) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    void compileLet() {
+	//let
+	t.advance();
+	String name = t.getToken();	
+	int nameToken = t.getIndex();
+	boolean isArrayAcc = false;
+	int indexMark = vm.size();
+
+	t.advance();
+	//Arrays
+	if (t.isSymbol('[')) {
+	    isArrayAcc = true;
+	    t.advance();
+	    compileExpression();
+	    t.advance();
+	}
+	//EQ-symbol
+	t.advance();
+	//Compile set value
+	int valueMark = vm.size();
+	compileExpression();
+	if (isArrayAcc) {
+	    SymbolTableEntry base = resolve(name, nameToken);
+	    int index = optimize ? vm.constantValue(indexMark, valueMark) : VmCode.NOT_CONSTANT;
+	    if (index >= 0) {
+		//Constant index: pop straight into that k once the value is on the stack
+		vm.remove(indexMark, valueMark);
+		setThat(base);
+		vm.pop(VmCode.THAT, index);
+	    } else if (optimize && !touchesThat(valueMark, vm.size())) {
+		//The value can't move pointer 1 or change anything the index
+		//read, so point that at the element first and skip temp 0
+		vm.push(base);
+		vm.op(VmCode.ADD);
+		vm.pop(VmCode.POINTER, 1);
+		vm.moveToEnd(valueMark, vm.size() - 3);
+		vm.pop(VmCode.THAT, 0);
+	    } else {
+		vm.pop(VmCode.TEMP, 0);
+		vm.push(base);
+		vm.op(VmCode.ADD);
+		vm.pop(VmCode.POINTER, 1);
+		vm.push(VmCode.TEMP, 0);
+		vm.pop(VmCode.THAT, 0);
+	    }
+	} else {
+	    vm.pop(resolve(name, nameToken));
+	}
+	t.advance();
+    }
+
+    void compileIf() {
+	int i = runningLoopIndex;
+	runningLoopIndex++;
+	int l1 = vm.name(className+Integer.toString(i)+"L1");
+	int l2 = vm.name(className+Integer.toString(i)+"L2");
+
+	//if
+	t.advance();
+	
+	//(expression)
+	t.advance();
+	int condMark = vm.size();
+	compileExpression();
+	t.advance();
+	//With a constant condition only the branch that runs is kept, without the test.
+	//not; if-goto only falls into the then part for -1, so any other constant is false.
+	int cond = optimize ? vm.constantValue(condMark, vm.size()) : VmCode.NOT_CONSTANT;
+	boolean test = cond == VmCode.NOT_CONSTANT;
+
+	if (test) {
+	    vm.op(VmCode.NOT);
+	    vm.ifGoto(l1);
+	} else {
+	    vm.truncate(condMark);
+	}
+	t.advance();
+	int thenMark = vm.size();
+	compileStatements();
+	boolean thenCompletes = completes;
+	if (!test && cond != -1) {
+	    vm.truncate(thenMark);
+	}
+
+	t.advance();
+	if (test) {
+	    vm.gotoLabel(l2);
+	    vm.label(l1);
+	}
+
+	boolean elseCompletes = true;
+	if (t.getKeyword() == Tokenizer.KW_ELSE) {
+	    //else {statements}
+	    t.advance();
+	    t.advance();
+	    int elseMark = vm.size();
+	    compileStatements();
+	    elseCompletes = completes;
+	    if (cond == -1) {
+		vm.truncate(elseMark);
+	    }
+	    t.advance();
+	}
+	if (test) {
+	    vm.label(l2);
+	    completes = thenCompletes || elseCompletes;
+	} else {
+	    completes = cond == -1 ? thenCompletes : elseCompletes;
+	}
+    }
+    void compileWhile() {
+	int i = runningLoopIndex;
+	runningLoopIndex++;
+	int l1 = vm.name(className+Integer.toString(i)+"L1");
+	int l2 = vm.name(className+Integer.toString(i)+"L2");
+	int whileMark = vm.size();
+	vm.label(l1);
+	t.advance();
+	
+	t.advance();
+	loopDepth++;
+	int condMark = vm.size();
+	compileExpression();
+	int cond = optimize ? vm.constantValue(condMark, vm.size()) : VmCode.NOT_CONSTANT;
+	if (cond == VmCode.NOT_CONSTANT) {
+	    vm.op(VmCode.NOT);
+	    vm.ifGoto(l2);
+	} else {
+	    vm.truncate(condMark);
+	}
+	t.advance();
+	t.advance();
+	compileStatements();
+	loopDepth--;
+	t.advance();
+	if (cond != VmCode.NOT_CONSTANT && cond != -1) {
+	    //Only -1 makes the body run, so while (false) or while (1) never runs
+	    vm.truncate(whileMark);
+	    completes = true;
+	    return;
+	}
+	vm.gotoLabel(l1);
+	if (cond == VmCode.NOT_CONSTANT) {
+	    vm.label(l2);
+	}
+	//There is no break in Jack, so a loop on a true constant never finishes
+	completes = cond == VmCode.NOT_CONSTANT;
+    }
+
+    void compileDo() {
+	t.advance();
+	
+	compileExpression();
+	t.advance();
+	//We append this to get rid of the return value; do doesn't care about it!
+	vm.pop(VmCode.TEMP, 0);
+    }
+
+    void compileReturn() {
+	t.advance();
+	
+	if (!t.isSymbol(';')) {
+	    compileExpression();
+	} else {
+	    vm.push(VmCode.CONSTANT, 0);
+	}
+	
+	t.advance();
+
+	vm.op(VmCode.RETURN);
+	completes = false;
+    }
+    void compileExpression() {
+	int mark = vm.size();
+	compileTerm();
+	
+	int op;
+	while ((op = t.getOperator()) != Tokenizer.OP_NONE) {
+	    t.advance();
+	    int rightMark = vm.size();
+	    compileTerm();
+	    if (optimize) {
+		int left = vm.constantValue(mark, rightMark);
+		int right = vm.constantValue(rightMark, vm.size());
+		int value = VmCode.NOT_CONSTANT;
+		if (left != VmCode.NOT_CONSTANT && right != VmCode.NOT_CONSTANT) {
+		    value = foldConstant(op, left, right);
+		}
+		if (value != VmCode.NOT_CONSTANT) {
+		    vm.truncate(mark);
+		    vm.pushConstant(value);
+		    continue;
+		}
+		if ((op == Tokenizer.OP_MUL || op == Tokenizer.OP_DIV) && reduceStrength(op, mark, rightMark)) {
+		    removedCalls.merge(functionName, 1, Integer::sum);
+		    continue;
+		}
+	    }
+	    switch (op) {
+		case Tokenizer.OP_ADD:
+		    vm.op(VmCode.ADD);
+		    break;
+		case Tokenizer.OP_SUB:
+		    vm.op(VmCode.SUB);
+		    break;
+		case Tokenizer.OP_MUL:
+		    vm.call(vm.name("Math.multiply"), 2);
+		    break;
+		case Tokenizer.OP_DIV:
+		    vm.call(vm.name("Math.divide"), 2);
+		    break;
+		case Tokenizer.OP_AND:
+		    vm.op(VmCode.AND);
+		    break;
+		case Tokenizer.OP_OR:
+		    vm.op(VmCode.OR);
+		    break;
+		case Tokenizer.OP_LT:
+		    vm.op(VmCode.LT);
+		    break;
+		case Tokenizer.OP_GT:
+		    vm.op(VmCode.GT);
+		    break;
+		case Tokenizer.OP_EQ:
+		    vm.op(VmCode.EQ);
+		    break;
+		
+	    }
+	}
+	
+    }
+
+    //Replaces a multiply or divide by a constant with cheaper code, if there is some.
+    //The operands are at [mark, rightMark) and [rightMark, end). Returns false if nothing was done.
+    boolean reduceStrength(int op, int mark, int rightMark) {
+	int c = vm.constantValue(rightMark, vm.size());
+	if (c == VmCode.NOT_CONSTANT && op == Tokenizer.OP_MUL) {
+	    //c * x is x * c, move x down over the constant
+	    c = vm.constantValue(mark, rightMark);
+	    if (c == VmCode.NOT_CONSTANT || !canMultiplyBy(c)) {
+		return false;
+	    }
+	    vm.remove(mark, rightMark);
+	} else if (c == VmCode.NOT_CONSTANT) {
+	    return false;
+	} else {
+	    if (op == Tokenizer.OP_MUL ? !canMultiplyBy(c) : c != 1) {
+		//Division has no cheap form on the VM except by 1
+		return false;
+	    }
+	    vm.truncate(rightMark);
+	}
+	if (c == 0) {
+	    if (vm.hasCall(mark, vm.size())) {
+		vm.pop(VmCode.TEMP, 0);
+	    } else {
+		vm.truncate(mark);
+	    }
+	    vm.push(VmCode.CONSTANT, 0);
+	} else if (c != 1) {
+	    multiplyByConstant(mark, c);
+	}
+	return true;
+    }
+
+    static boolean canMultiplyBy(int c) {
+	if (c == 0 || c == 1 || c == -1) {
+	    return true;
+	}
+	if (c == Short.MIN_VALUE) {
+	    return false;
+	}
+	c = Math.abs(c);
+	int doublings = 31 - Integer.numberOfLeadingZeros(c);
+	int adds = Integer.bitCount(c) - 1;
+	return doublings + adds <= MAX_MULTIPLY_STEPS;
+    }
+
+    //x * c by doubling and adding, x's code is at [mark, end). The VM has no dup, so x
+    //is pushed again if it is a single push, otherwise kept in temp 1. The running
+    //total is doubled through temp 2.
+    void multiplyByConstant(int mark, int c) {
+	boolean negative = c < 0;
+	c = Math.abs(c);
+	int xSegment = VmCode.TEMP;
+	int xIndex = 1;
+	if (vm.size() - mark == 1 && vm.ops[mark] == VmCode.PUSH) {
+	    xSegment = vm.segments[mark];
+	    xIndex = vm.operands[mark];
+	} else {
+	    vm.pop(VmCode.TEMP, 1);
+	    vm.push(VmCode.TEMP, 1);
+	}
+	boolean first = true;
+	for (int bit = Integer.highestOneBit(c) >> 1; bit > 0; bit >>= 1) {
+	    if (first) {
+		//The total is still x, so x + x
+		vm.push(xSegment, xIndex);
+		first = false;
+	    } else {
+		vm.pop(VmCode.TEMP, 2);
+		vm.push(VmCode.TEMP, 2);
+		vm.push(VmCode.TEMP, 2);
+	    }
+	    vm.op(VmCode.ADD);
+	    if ((c & bit) != 0) {
+		vm.push(xSegment, xIndex);
+		vm.op(VmCode.ADD);
+	    }
+	}
+	if (negative) {
+	    vm.op(VmCode.NEG);
+	}
+    }
+
+    public Map<String, Integer> getRemovedCalls() {
+	return removedCalls;
+    }
+
+    //Works out 'a op b' on 16 bits, the way the VM and the Math library would at run time.
+    //Gives NOT_CONSTANT for what has to be left to run time, like division by zero.
+    static int foldConstant(int op, int a, int b) {
+	switch (op) {
+	    case Tokenizer.OP_ADD:
+		return (short) (a + b);
+	    case Tokenizer.OP_SUB:
+		return (short) (a - b);
+	    case Tokenizer.OP_MUL:
+		return (short) (a * b);
+	    case Tokenizer.OP_DIV:
+		//Math.divide works on absolute values, which -32768 does not have
+		if (b == 0 || a == Short.MIN_VALUE || b == Short.MIN_VALUE) {
+		    return VmCode.NOT_CONSTANT;
+		}
+		return (short) (a / b);
+	    case Tokenizer.OP_AND:
+		return a & b;
+	    case Tokenizer.OP_OR:
+		return a | b;
+	    case Tokenizer.OP_LT:
+		return a < b ? -1 : 0;
+	    case Tokenizer.OP_GT:
+		return a > b ? -1 : 0;
+	    case Tokenizer.OP_EQ:
+		return a == b ? -1 : 0;
+	    default:
+		return VmCode.NOT_CONSTANT;
+	}
+    }
+
+    void compileTerm() {
+	byte kind = t.getKind();
+	char symbol = t.getSymbol();
+	if (kind == Tokenizer.KIND_INT_CONST)  {
+	    vm.push(VmCode.CONSTANT, t.getIntValue());
+	    t.advance();
+	}
+	else if (kind == Tokenizer.KIND_STRING_CONST) {
+	    String cToken = t.getToken();
+	    if (poolStrings && (loopDepth > 0 || literalCounts.get(cToken) > 1)) {
+		compilePooledString(cToken);
+	    } else {
+		compileStringBuild(cToken);
+	    }
+	    t.advance();
+	} else if (kind == Tokenizer.KIND_KEYWORD) {
+	    switch (t.getKeyword()) {
+		case Tokenizer.KW_TRUE:
+		    vm.push(VmCode.CONSTANT, 1);
+		    vm.op(VmCode.NEG);
+		    break;
+		case Tokenizer.KW_FALSE:
+		    vm.push(VmCode.CONSTANT, 0);
+		    break;
+		case Tokenizer.KW_NULL:
+		    vm.push(VmCode.CONSTANT, 0);
+		    break;
+		case Tokenizer.KW_THIS:
+		    vm.push(VmCode.POINTER, 0);
+		    break;
+		default:
+		    break;
+	    }
+	    t.advance();
+
+	} else if (symbol == '(') {
+	    t.advance();
+	    compileExpression();
+	    t.advance();
+	} else if (symbol == '-' || symbol == '~') {
+	    t.advance();
+	    int mark = vm.size();
+	    compileTerm();
+	    int value = optimize ? vm.constantValue(mark, vm.size()) : VmCode.NOT_CONSTANT;
+	    if (value != VmCode.NOT_CONSTANT) {
+		vm.truncate(mark);
+		vm.pushConstant(symbol == '-' ? -value : ~value);
+	    } else if (symbol == '-'){
+		vm.op(VmCode.NEG);
+	    } else {
+		vm.op(VmCode.NOT);
+	    }
+	} else {
+	    String varname = t.getToken();
+	    int nameToken = t.getIndex();
+	    t.advance();
+	    switch (t.getSymbol()) {
+		case '[':
+		    //Array Accessing
+		    t.advance();
+		    SymbolTableEntry base = resolve(varname, nameToken);
+		    int baseMark = vm.size();
+		    vm.push(base);
+		    compileExpression();
+		    int index = optimize ? vm.constantValue(baseMark + 1, vm.size()) : VmCode.NOT_CONSTANT;
+		    if (index >= 0) {
+			vm.truncate(baseMark);
+			setThat(base);
+			vm.push(VmCode.THAT, index);
+		    } else {
+			vm.op(VmCode.ADD);
+			vm.pop(VmCode.POINTER, 1);
+			vm.push(VmCode.THAT, 0);
+		    }
+		    t.advance();
+		    break;
+		case '.':
+		    t.advance();
+		    String subroutineName = t.getToken();
+		    //Not a variable means a function/constructor call on a class
+		    SymbolTableEntry test = st.lookup(varname);
+		    if (test != null) {
+			//we have a method call
+			vm.push(test);
+			t.advance();
+			t.advance();
+			int args = compileExpressionList();
+			t.advance();
+			vm.call(vm.name(test.getType(), subroutineName), args+1);
+		    } else {
+			t.advance();
+			t.advance();
+			int args = compileExpressionList();
+			t.advance();
+			vm.call(vm.name(varname, subroutineName), args);
+		    }
+		    break;
+		case '(':
+		    //This is a method call inside the object itself
+		    vm.push(VmCode.POINTER, 0);
+		    t.advance();
+		    int args = compileExpressionList();
+		    t.advance();
+		    vm.call(vm.name(className, varname), args+1);
+		    break;
+		default:
+		    vm.push(resolve(varname, nameToken));
+		    break;
+	    }
+	}
+    }
+
+    //Returns the number of expressions, which a call inside one of them can't change
+    int compileExpressionList() {
+	int args = 0;
+	if (t.isSymbol(')')){
+	    return args;
+	}
+	compileExpression();
+	args++;
+	while (t.isSymbol(',')) {
+	    t.advance();
+	    compileExpression();
+	    args++;
+	}
+	return args;
+    }
+}
+
+// VM code kept as instructions instead of text. Instruction i is ops[i] with
+// segments[i] and operands[i] for push/pop, operands[i] for the local/argument
+// counts of function/call, and names[i] for the label or function name, an id
+// into the shared VmNames table. VmEmitter turns it into .vm text.
+class VmCode {
+    // Opcodes
+    static final byte PUSH = 0;
+    static final byte POP = 1;
+    static final byte ADD = 2;
+    static final byte SUB = 3;
+    static final byte NEG = 4;
+    static final byte EQ = 5;
+    static final byte GT = 6;
+    static final byte LT = 7;
+    static final byte AND = 8;
+    static final byte OR = 9;
+    static final byte NOT = 10;
+    static final byte LABEL = 11;
+    static final byte GOTO = 12;
+    static final byte IF_GOTO = 13;
+    static final byte FUNCTION = 14;
+    static final byte CALL = 15;
+    static final byte RETURN = 16;
+    static final String[] OP_NAMES = {"push", "pop", "add", "sub", "neg", "eq", "gt", "lt", "and", "or", "not",
+				      "label", "goto", "if-goto", "function", "call", "return"};
+
+    // Segments
+    static final byte CONSTANT = 0;
+    static final byte ARGUMENT = 1;
+    static final byte LOCAL = 2;
+    static final byte STATIC = 3;
+    static final byte THIS = 4;
+    static final byte THAT = 5;
+    static final byte POINTER = 6;
+    static final byte TEMP = 7;
+    static final String[] SEGMENT_NAMES = {"constant", "argument", "local", "static", "this", "that", "pointer", "temp"};
+
+    byte[] ops = new byte[256];
+    byte[] segments = new byte[256];
+    int[] operands = new int[256];
+    int[] names = new int[256];
+    int size = 0;
+    VmNames nameTable;
+
+    public VmCode() {
+	nameTable = new VmNames();
+    }
+
+    // Empty code that shares the name table of 'other'
+    public VmCode(VmCode other) {
+	nameTable = other.nameTable;
+    }
+
+    static byte segmentCode(String segment) {
+	for (byte k = 0; k < SEGMENT_NAMES.length; k++) {
+	    if (SEGMENT_NAMES[k].equals(segment)) {
+		return k;
+	    }
+	}
+	throw new IllegalArgumentException("Unknown segment: " + segment);
+    }
+
+    public int name(String name) {
+	return nameTable.id(name, null);
+    }
+
+    // Id of className.subroutineName, without building the string if it is already known
+    public int name(String className, String subroutineName) {
+	return nameTable.id(className, subroutineName);
+    }
+
+    public String nameOf(int id) {
+	return nameTable.get(id);
+    }
+
+    public void push(int segment, int index) {
+	add(PUSH, segment, index, -1);
+    }
+    public void push(SymbolTableEntry e) {
+	add(PUSH, e.getSegment(), e.getIndex(), -1);
+    }
+    public void pop(int segment, int index) {
+	add(POP, segment, index, -1);
+    }
+    public void pop(SymbolTableEntry e) {
+	add(POP, e.getSegment(), e.getIndex(), -1);
+    }
+    // Arithmetic, logic and return
+    public void op(int op) {
+	add(op, 0, 0, -1);
+    }
+    public void label(int name) {
+	add(LABEL, 0, 0, name);
+    }
+    public void gotoLabel(int name) {
+	add(GOTO, 0, 0, name);
+    }
+    public void ifGoto(int name) {
+	add(IF_GOTO, 0, 0, name);
+    }
+    public void function(int name, int locals) {
+	add(FUNCTION, 0, locals, name);
+    }
+    public void call(int name, int args) {
+	add(CALL, 0, args, name);
+    }
+
+    // Pushes any 16-bit value, push constant itself only takes 0..32767
+    public void pushConstant(int value) {
+	value = (short) value;
+	if (value >= 0) {
+	    push(CONSTANT, value);
+	} else if (value == Short.MIN_VALUE) {
+	    push(CONSTANT, Short.MAX_VALUE);
+	    op(NOT);
+	} else {
+	    push(CONSTANT, -value);
+	    op(NEG);
+	}
+    }
+
+    static final int NOT_CONSTANT = Integer.MIN_VALUE;
+
+    // The value left by the code in [from, to) when that code is only a constant,
+    // push constant c and then any neg/not. NOT_CONSTANT for anything else.
+    public int constantValue(int from, int to) {
+	if (from >= to || ops[from] != PUSH || segments[from] != CONSTANT) {
+	    return NOT_CONSTANT;
+	}
+	int value = operands[from];
+	for (int i = from + 1; i < to; i++) {
+	    if (ops[i] == NEG) {
+		value = -value;
+	    } else if (ops[i] == NOT) {
+		value = ~value;
+	    } else {
+		return NOT_CONSTANT;
+	    }
+	}
+	return (short) value;
+    }
+
+    // How many instructions pushConstant needs for a value
+    static int constantLength(int value) {
+	return (short) value >= 0 ? 1 : 2;
+    }
+
+    // Copies instruction i of 'from'. Its name is looked up again if 'from' has another name table.
+    public void copy(VmCode from, int i) {
+	int name = from.names[i];
+	if (name >= 0 && from.nameTable != nameTable) {
+	    name = nameTable.id(from.nameOf(name), null);
+	}
+	add(from.ops[i], from.segments[i], from.operands[i], name);
+    }
+
+    void add(int op, int segment, int operand, int name) {
+	if (size == ops.length) {
+	    int newSize = size * 2;
+	    ops = Arrays.copyOf(ops, newSize);
+	    segments = Arrays.copyOf(segments, newSize);
+	    operands = Arrays.copyOf(operands, newSize);
+	    names = Arrays.copyOf(names, newSize);
+	}
+	ops[size] = (byte) op;
+	segments[size] = (byte) segment;
+	operands[size] = operand;
+	names[size] = name;
+	size++;
+    }
+
+    public int size() {
+	return size;
+    }
+
+    // Moves the instructions in [from, to) after everything else
+    public void moveToEnd(int from, int to) {
+	int n = to - from;
+	byte[] o = Arrays.copyOfRange(ops, from, to);
+	byte[] s = Arrays.copyOfRange(segments, from, to);
+	int[] v = Arrays.copyOfRange(operands, from, to);
+	int[] m = Arrays.copyOfRange(names, from, to);
+	remove(from, to);
+	for (int i = 0; i < n; i++) {
+	    add(o[i], s[i], v[i], m[i]);
+	}
+    }
+
+    // Drops the instructions in [from, to), moving the rest down
+    public void remove(int from, int to) {
+	System.arraycopy(ops, to, ops, from, size - to);
+	System.arraycopy(segments, to, segments, from, size - to);
+	System.arraycopy(operands, to, operands, from, size - to);
+	System.arraycopy(names, to, names, from, size - to);
+	size -= to - from;
+    }
+
+    public boolean hasCall(int from, int to) {
+	for (int i = from; i < to; i++) {
+	    if (ops[i] == CALL) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    // Drops every instruction from 'mark' on
+    public void truncate(int mark) {
+	size = mark;
+    }
+
+    // Empty again, names included, keeping the arrays
+    public void clear() {
+	size = 0;
+	nameTable.clear();
+    }
+
+    public void append(VmCode from) {
+	for (int i = 0; i < from.size(); i++) {
+	    copy(from, i);
+	}
+    }
+}
+
+// Interned label and function names. A name can be looked up as one string
+// or as a className/subroutineName pair, which is matched against the
+// stored "className.subroutineName" without concatenating.
+class VmNames {
+    private String[] strings = new String[64];
+    private int count = 0;
+    private int[] slots = new int[128];     // id + 1, 0 for an empty slot
+
+    public String get(int id) {
+	return strings[id];
+    }
+
+    public int size() {
+	return count;
+    }
+
+    public void clear() {
+	Arrays.fill(strings, 0, count, null);
+	Arrays.fill(slots, 0);
+	count = 0;
+    }
+
+    public int id(String first, String second) {
+	int h = first.hashCode();
+	if (second != null) {
+	    h = 31 * h + '.';
+	    for (int i = 0; i < second.length(); i++) {
+		h = 31 * h + second.charAt(i);
+	    }
+	}
+	int mask = slots.length - 1;
+	int slot = h & mask;
+	while (slots[slot] != 0) {
+	    String s = strings[slots[slot] - 1];
+	    if (s.hashCode() == h && matches(s, first, second)) {
+		return slots[slot] - 1;
+	    }
+	    slot = (slot + 1) & mask;
+	}
+	String name = second == null ? first : first + "." + second;
+	if (count == strings.length) {
+	    strings = Arrays.copyOf(strings, count * 2);
+	}
+	strings[count] = name;
+	slots[slot] = count + 1;
+	count++;
+	if (count * 2 > slots.length) {
+	    rehash();
+	}
+	return count - 1;
+    }
+
+    private static boolean matches(String s, String first, String second) {
+	if (second == null) {
+	    return s.equals(first);
+	}
+	return s.length() == first.length() + 1 + second.length()
+	    && s.startsWith(first) && s.charAt(first.length()) == '.' && s.endsWith(second);
+    }
+
+    private void rehash() {
+	slots = new int[slots.length * 2];
+	int mask = slots.length - 1;
+	for (int id = 0; id < count; id++) {
+	    int slot = strings[id].hashCode() & mask;
+	    while (slots[slot] != 0) {
+		slot = (slot + 1) & mask;
+	    }
+	    slots[slot] = id + 1;
+	}
+    }
+}
+
+// Peephole optimiser behind -O. Slides a window over the code and tries the
+// rules in RULES at each instruction, in order. The first rule that matches
+// writes its replacement and returns how many instructions it used up; if
+// none match the instruction is copied as it is. Every rule makes the code
+// shorter, so passes repeat until one leaves the size unchanged.
+class VmPeephole {
+
+    interface Rule {
+	// Returns 0 without touching 'out' if the rule does not match at in[i]
+	int rewrite(VmCode in, int i, VmCode out);
+    }
+
+    static final Rule[] RULES = {
+	VmPeephole::pushThenPop,         // push x; pop x                 ->
+	VmPeephole::doubleUnary,         // not; not  /  neg; neg          ->
+	VmPeephole::constantUnary,       // push constant 1; neg; not      -> push constant 0
+	VmPeephole::constantBranch,      // push constant 0; if-goto L     ->  (or goto L when not 0)
+	VmPeephole::identityOp,          // push constant 0; add|sub|or    ->
+	VmPeephole::notEqualBranch,      // eq; not; if-goto L             -> sub; if-goto L
+	VmPeephole::constantCompareBranch, // push constant 10; lt; not; if-goto L -> push constant 9; gt; if-goto L
+	VmPeephole::branchOverGoto,      // not; if-goto L1; goto L2; label L1 -> if-goto L2; label L1
+	VmPeephole::gotoNext,            // goto L; label L                -> label L
+	VmPeephole::unreachable,         // goto/return followed by code with no label in front of it
+    };
+
+    public static VmCode optimize(VmCode code) {
+	while (true) {
+	    VmCode out = new VmCode(code);
+	    int i = 0;
+	    while (i < code.size) {
+		int used = 0;
+		for (Rule rule:RULES) {
+		    used = rule.rewrite(code, i, out);
+		    if (used > 0) {
+			break;
+		    }
+		}
+		if (used == 0) {
+		    out.copy(code, i);
+		    used = 1;
+		}
+		i += used;
+	    }
+	    if (out.size == code.size) {
+		return out;
+	    }
+	    code = out;
+	}
+    }
+
+    static boolean is(VmCode c, int i, int op) {
+	return i < c.size && c.ops[i] == op;
+    }
+
+    static boolean isPushConstant(VmCode c, int i) {
+	return is(c, i, VmCode.PUSH) && c.segments[i] == VmCode.CONSTANT;
+    }
+
+    static int pushThenPop(VmCode in, int i, VmCode out) {
+	if (is(in, i, VmCode.PUSH) && is(in, i + 1, VmCode.POP)
+	    && in.segments[i] == in.segments[i + 1] && in.operands[i] == in.operands[i + 1]) {
+	    return 2;
+	}
+	return 0;
+    }
+
+    static int doubleUnary(VmCode in, int i, VmCode out) {
+	if ((is(in, i, VmCode.NOT) || is(in, i, VmCode.NEG)) && is(in, i + 1, in.ops[i])) {
+	    return 2;
+	}
+	return 0;
+    }
+
+    // A constant followed by a run of neg/not, pushed as the value it works out to
+    static int constantUnary(VmCode in, int i, VmCode out) {
+	if (!isPushConstant(in, i)) {
+	    return 0;
+	}
+	int value = in.operands[i];
+	int n = 1;
+	while (is(in, i + n, VmCode.NEG) || is(in, i + n, VmCode.NOT)) {
+	    value = in.ops[i + n] == VmCode.NEG ? -value : ~value;
+	    n++;
+	}
+	if (VmCode.constantLength(value) >= n) {
+	    return 0;
+	}
+	out.pushConstant(value);
+	return n;
+    }
+
+    static int constantBranch(VmCode in, int i, VmCode out) {
+	if (isPushConstant(in, i) && is(in, i + 1, VmCode.IF_GOTO)) {
+	    if (in.operands[i] != 0) {
+		out.gotoLabel(in.names[i + 1]);
+	    }
+	    return 2;
+	}
+	return 0;
+    }
+
+    static int identityOp(VmCode in, int i, VmCode out) {
+	if (isPushConstant(in, i) && in.operands[i] == 0
+	    && (is(in, i + 1, VmCode.ADD) || is(in, i + 1, VmCode.SUB) || is(in, i + 1, VmCode.OR))) {
+	    return 2;
+	}
+	return 0;
+    }
+
+    // a - b is zero exactly when a = b, so branch on it directly
+    static int notEqualBranch(VmCode in, int i, VmCode out) {
+	if (is(in, i, VmCode.EQ) && is(in, i + 1, VmCode.NOT) && is(in, i + 2, VmCode.IF_GOTO)) {
+	    out.op(VmCode.SUB);
+	    out.ifGoto(in.names[i + 2]);
+	    return 3;
+	}
+	return 0;
+    }
+
+    // x >= c is x > c-1 and x <= c is x < c+1, as long as c-1 and c+1 can still be pushed
+    static int constantCompareBranch(VmCode in, int i, VmCode out) {
+	if (!isPushConstant(in, i) || !is(in, i + 2, VmCode.NOT) || !is(in, i + 3, VmCode.IF_GOTO)) {
+	    return 0;
+	}
+	int c = in.operands[i];
+	if (is(in, i + 1, VmCode.LT) && c > 0) {
+	    out.push(VmCode.CONSTANT, c - 1);
+	    out.op(VmCode.GT);
+	} else if (is(in, i + 1, VmCode.GT) && c < Short.MAX_VALUE) {
+	    out.push(VmCode.CONSTANT, c + 1);
+	    out.op(VmCode.LT);
+	} else {
+	    return 0;
+	}
+	out.ifGoto(in.names[i + 3]);
+	return 4;
+    }
+
+    // An if with an empty then part. not; if-goto L1 goes to L2 only for -1, if-goto L2
+    // for anything but 0, so the condition has to be a comparison that gives 0 or -1.
+    static int branchOverGoto(VmCode in, int i, VmCode out) {
+	int last = out.size - 1;
+	if (last < 0 || (out.ops[last] != VmCode.EQ && out.ops[last] != VmCode.LT && out.ops[last] != VmCode.GT)) {
+	    return 0;
+	}
+	if (is(in, i, VmCode.NOT) && is(in, i + 1, VmCode.IF_GOTO) && is(in, i + 2, VmCode.GOTO)
+	    && is(in, i + 3, VmCode.LABEL) && in.names[i + 1] == in.names[i + 3]) {
+	    out.ifGoto(in.names[i + 2]);
+	    out.copy(in, i + 3);
+	    return 4;
+	}
+	return 0;
+    }
+
+    static int gotoNext(VmCode in, int i, VmCode out) {
+	if (is(in, i, VmCode.GOTO) && is(in, i + 1, VmCode.LABEL) && in.names[i] == in.names[i + 1]) {
+	    out.copy(in, i + 1);
+	    return 2;
+	}
+	return 0;
+    }
+
+    // Nothing can jump into code between a goto/return and the next label or function
+    static int unreachable(VmCode in, int i, VmCode out) {
+	if (!is(in, i, VmCode.GOTO) && !is(in, i, VmCode.RETURN)) {
+	    return 0;
+	}
+	int n = 1;
+	while (i + n < in.size && in.ops[i + n] != VmCode.LABEL && in.ops[i + n] != VmCode.FUNCTION) {
+	    n++;
+	}
+	if (n == 1) {
+	    return 0;
+	}
+	out.copy(in, i);
+	return n;
+    }
+}
+
+// Control-flow pass behind -O, run after the peephole rules. Each function is
+// cut into basic blocks: a block starts at a label, or a run of them, and ends
+// after a goto, if-goto or return. Jumps to a block that is only a goto are
+// sent straight to where that goto leads, blocks nothing reaches are dropped,
+// and blocks are laid out so that a goto is followed by its target where it
+// can be, which makes the goto unnecessary. Blocks that fall into the next
+// one stay together, so no goto is ever added. Labels no jump names any more
+// are dropped as well.
+class VmFlowGraph {
+    int branchesRemoved = 0;
+    int labelsRemoved = 0;
+
+    // Per function, indexed by block
+    private int[] starts = new int[16];     // first instruction
+    private int[] bodies = new int[16];     // first instruction after the labels
+    private int[] ends = new int[16];       // one past the last instruction
+    private int[] targets = new int[16];    // block a goto/if-goto ends up at
+    private boolean[] reached = new boolean[16];
+    private int[] order = new int[16];      // blocks in their new order
+    private int count;
+    private HashMap<Integer, Integer> labelBlocks = new HashMap<>();
+
+    public VmCode optimize(VmCode code) {
+	VmCode out = new VmCode(code);
+	int i = 0;
+	while (i < code.size()) {
+	    //One function per step: [i, next)
+	    int next = i + 1;
+	    while (next < code.size() && code.ops[next] != VmCode.FUNCTION) {
+		next++;
+	    }
+	    if (code.ops[i] == VmCode.FUNCTION) {
+		out.copy(code, i);
+		if (!function(code, i + 1, next, out)) {
+		    copy(code, i + 1, next, out);
+		}
+	    } else {
+		copy(code, i, next, out);
+	    }
+	    i = next;
+	}
+	return out;
+    }
+
+    private static void copy(VmCode code, int from, int to, VmCode out) {
+	for (int i = from; i < to; i++) {
+	    out.copy(code, i);
+	}
+    }
+
+    // Writes the body [from, to) of a function to 'out' with its blocks rearranged.
+    // False, having written nothing, if the body isn't something it knows how to
+    // rearrange: a label defined twice, a jump to a label that isn't there, or
+    // code that runs off the end of the function.
+    private boolean function(VmCode code, int from, int to, VmCode out) {
+	if (!split(code, from, to)) {
+	    return false;
+	}
+	//Jumps to a block that only jumps on go to where it leads
+	for (int b = 0; b < count; b++) {
+	    int op = code.ops[ends[b] - 1];
+	    if (op == VmCode.GOTO || op == VmCode.IF_GOTO) {
+		Integer target = labelBlocks.get(code.names[ends[b] - 1]);
+		if (target == null) {
+		    return false;
+		}
+		int t = target;
+		for (int steps = 0; steps < count && isOnlyGoto(code, t); steps++) {
+		    Integer on = labelBlocks.get(code.names[ends[t] - 1]);
+		    if (on == null) {
+			return false;
+		    }
+		    t = on;
+		}
+		targets[b] = t;
+	    }
+	}
+	if (!reach(code)) {
+	    return false;
+	}
+	layout(code);
+
+	int branchesBefore = 0;
+	int labelsBefore = 0;
+	for (int i = from; i < to; i++) {
+	    if (code.ops[i] == VmCode.GOTO || code.ops[i] == VmCode.IF_GOTO) {
+		branchesBefore++;
+	    } else if (code.ops[i] == VmCode.LABEL) {
+		labelsBefore++;
+	    }
+	}
+	//A block is jumped to by its first label, which is kept if anything uses it
+	boolean[] named = new boolean[count];
+	int placed = 0;
+	while (placed < count && order[placed] >= 0) {
+	    int b = order[placed];
+	    int next = placed + 1 < count ? order[placed + 1] : -1;
+	    int op = code.ops[ends[b] - 1];
+	    if ((op == VmCode.GOTO || op == VmCode.IF_GOTO) && targets[b] != next) {
+		named[targets[b]] = true;
+	    }
+	    placed++;
+	}
+	int outStart = out.size();
+	for (int k = 0; k < placed; k++) {
+	    int b = order[k];
+	    int next = k + 1 < placed ? order[k + 1] : -1;
+	    if (named[b]) {
+		out.copy(code, starts[b]);
+	    }
+	    int last = ends[b] - 1;
+	    int op = code.ops[last];
+	    boolean jumps = op == VmCode.GOTO || op == VmCode.IF_GOTO;
+	    copy(code, bodies[b], jumps ? last : ends[b], out);
+	    if (!jumps) {
+		continue;
+	    }
+	    if (targets[b] == next) {
+		//Both ways lead to the next block, the condition only has to come off the stack
+		if (op == VmCode.IF_GOTO) {
+		    out.pop(VmCode.TEMP, 0);
+		}
+	    } else {
+		out.add(op, 0, 0, code.names[starts[targets[b]]]);
+	    }
+	}
+	for (int i = outStart; i < out.size(); i++) {
+	    if (out.ops[i] == VmCode.GOTO || out.ops[i] == VmCode.IF_GOTO) {
+		branchesBefore--;
+	    } else if (out.ops[i] == VmCode.LABEL) {
+		labelsBefore--;
+	    }
+	}
+	branchesRemoved += branchesBefore;
+	labelsRemoved += labelsBefore;
+	return true;
+    }
+
+    // Cuts [from, to) into blocks
+    private boolean split(VmCode code, int from, int to) {
+	count = 0;
+	labelBlocks.clear();
+	int i = from;
+	while (i < to) {
+	    if (count == starts.length) {
+		int n = count * 2;
+		starts = Arrays.copyOf(starts, n);
+		bodies = Arrays.copyOf(bodies, n);
+		ends = Arrays.copyOf(ends, n);
+		targets = Arrays.copyOf(targets, n);
+		reached = Arrays.copyOf(reached, n);
+		order = Arrays.copyOf(order, n);
+	    }
+	    starts[count] = i;
+	    while (i < to && code.ops[i] == VmCode.LABEL) {
+		if (labelBlocks.put(code.names[i], count) != null) {
+		    return false;
+		}
+		i++;
+	    }
+	    bodies[count] = i;
+	    while (i < to) {
+		int op = code.ops[i++];
+		if (op == VmCode.GOTO || op == VmCode.IF_GOTO || op == VmCode.RETURN
+		    || (i < to && code.ops[i] == VmCode.LABEL)) {
+		    break;
+		}
+	    }
+	    ends[count] = i;
+	    targets[count] = -1;
+	    count++;
+	}
+	return true;
+    }
+
+    private boolean isOnlyGoto(VmCode code, int b) {
+	return bodies[b] == ends[b] - 1 && code.ops[bodies[b]] == VmCode.GOTO;
+    }
+
+    // Whether block b goes on to the block after it when it is done
+    private boolean fallsThrough(VmCode code, int b) {
+	if (bodies[b] == ends[b]) {
+	    return true;
+	}
+	int op = code.ops[ends[b] - 1];
+	return op != VmCode.GOTO && op != VmCode.RETURN;
+    }
+
+    // Marks the blocks that can run, from the first one. False if one of them runs off the end.
+    private boolean reach(VmCode code) {
+	Arrays.fill(reached, 0, count, false);
+	if (count == 0) {
+	    return true;
+	}
+	int[] stack = new int[count];
+	int top = 0;
+	stack[top++] = 0;
+	reached[0] = true;
+	while (top > 0) {
+	    int b = stack[--top];
+	    if (targets[b] >= 0 && !reached[targets[b]]) {
+		reached[targets[b]] = true;
+		stack[top++] = targets[b];
+	    }
+	    if (fallsThrough(code, b)) {
+		if (b + 1 == count) {
+		    return false;
+		}
+		if (!reached[b + 1]) {
+		    reached[b + 1] = true;
+		    stack[top++] = b + 1;
+		}
+	    }
+	}
+	return true;
+    }
+
+    // Fills 'order' with the blocks that can run, -1 after the last. Blocks that fall
+    // into the next one form a chain that is kept in one piece. Chains start in the
+    // order of the source, except that a chain ending in a goto is followed by the
+    // chain that goto leads to, if that one starts at the target and isn't placed yet.
+    private void layout(VmCode code) {
+	Arrays.fill(order, 0, count, -1);
+	boolean[] placed = new boolean[count];
+	int n = 0;
+	int head = 0;
+	int nextHead = 0;
+	while (head >= 0) {
+	    //The chain starting at 'head'
+	    int b = head;
+	    while (true) {
+		placed[b] = true;
+		order[n++] = b;
+		if (!fallsThrough(code, b)) {
+		    break;
+		}
+		b++;
+	    }
+	    head = -1;
+	    int t = targets[b];
+	    if (code.ops[ends[b] - 1] == VmCode.GOTO && !placed[t] && isChainHead(code, t)) {
+		head = t;
+	    } else {
+		while (nextHead < count && (placed[nextHead] || !reached[nextHead] || !isChainHead(code, nextHead))) {
+		    nextHead++;
+		}
+		if (nextHead < count) {
+		    head = nextHead;
+		}
+	    }
+	}
+    }
+
+    // A block that can run and that no block falls into
+    private boolean isChainHead(VmCode code, int b) {
+	return reached[b] && (b == 0 || !reached[b - 1] || !fallsThrough(code, b - 1));
+    }
+}
+
+// Passes over the whole program for --whole-program, run once every file is
+// compiled. Subroutines are matched across files by their VM names.
+class WholeProgram {
+
+    // Runs the passes on the compiled files. Libraries are read but kept as they are.
+    static void link(List<CompileResult> results, Map<String, VmCode> libraries, CompilerOptions options) {
+	if (options.inline) {
+	    int before = countCalls(results);
+	    Inliner inliner = new Inliner(options.inlineBudget);
+	    inliner.inline(results);
+	    System.out.println("Whole program: inlined " + inliner.inlinedSites + " call sites of " + inliner.inlined.size()
+			       + " subroutines, calls in the program " + before + " -> " + countCalls(results));
+	}
+	removeDeadSubroutines(results, libraries.values());
+	if (options.optimize && options.inline) {
+	    //Inlined code often has something for the peephole rules again
+	    for (CompileResult r:results) {
+		r.setCode(VmPeephole.optimize(r.getCode()));
+	    }
+	}
+    }
+
+    static int countCalls(List<CompileResult> results) {
+	int calls = 0;
+	for (CompileResult r:results) {
+	    VmCode code = r.getCode();
+	    for (int i = 0; i < code.size(); i++) {
+		if (code.ops[i] == VmCode.CALL) {
+		    calls++;
+		}
+	    }
+	}
+	return calls;
+    }
+
+    // Keeps only the subroutines reachable from Main.main or Sys.init, or called
+    // from a library, through the call graph of the compiled files.
+    static void removeDeadSubroutines(List<CompileResult> results, Collection<VmCode> libraries) {
+	HashMap<String, List<String>> calls = new HashMap<>();
+	for (CompileResult r:results) {
+	    collectCalls(r.getCode(), calls);
+	}
+	if (!calls.containsKey("Main.main")) {
+	    System.out.println("Whole program: no Main.main, keeping every subroutine");
+	    return;
+	}
+	ArrayDeque<String> work = new ArrayDeque<>();
+	work.add("Main.main");
+	work.add("Sys.init");
+	for (VmCode library:libraries) {
+	    for (int i = 0; i < library.size(); i++) {
+		if (library.ops[i] == VmCode.CALL) {
+		    work.add(library.nameOf(library.names[i]));
+		}
+	    }
+	}
+	HashSet<String> reachable = new HashSet<>();
+	while (!work.isEmpty()) {
+	    String f = work.poll();
+	    if (reachable.add(f) && calls.containsKey(f)) {
+		work.addAll(calls.get(f));
+	    }
+	}
+
+	int total = 0;
+	List<String> removed = new ArrayList<>();
+	for (CompileResult r:results) {
+	    VmCode code = r.getCode();
+	    VmCode kept = new VmCode(code);
+	    boolean keep = true;
+	    for (int i = 0; i < code.size(); i++) {
+		if (code.ops[i] == VmCode.FUNCTION) {
+		    String name = code.nameOf(code.names[i]);
+		    total++;
+		    keep = reachable.contains(name);
+		    if (!keep) {
+			removed.add(name);
+		    }
+		}
+		if (keep) {
+		    kept.copy(code, i);
+		}
+	    }
+	    r.setCode(kept);
+	}
+	System.out.println("Whole program: removed " + removed.size() + " of " + total + " subroutines"
+			   + (removed.isEmpty() ? "" : " (" + String.join(", ", removed) + ")"));
+    }
+
+    // function name -> names it calls
+    static void collectCalls(VmCode code, Map<String, List<String>> calls) {
+	List<String> current = null;
+	for (int i = 0; i < code.size(); i++) {
+	    if (code.ops[i] == VmCode.FUNCTION) {
+		current = new ArrayList<>();
+		calls.put(code.nameOf(code.names[i]), current);
+	    } else if (code.ops[i] == VmCode.CALL && current != null) {
+		current.add(code.nameOf(code.names[i]));
+	    }
+	}
+    }
+
+    // The code holding function 'name', or null
+    static VmCode findFunction(Collection<VmCode> codes, String name) {
+	for (VmCode code:codes) {
+	    for (int i = 0; i < code.size(); i++) {
+		if (code.ops[i] == VmCode.FUNCTION && code.nameOf(code.names[i]).equals(name)) {
+		    return code;
+		}
+	    }
+	}
+	return null;
+    }
+}
+
+// Inlines calls to small subroutines for --inline. A subroutine can be inlined
+// if its body is straight-line code ending in its only return, it doesn't call
+// itself and it is at most 'budget' instructions long. At a call site its
+// arguments and locals become extra locals of the caller. If it sets pointer 0
+// (a method or constructor) and the caller uses this, the caller's pointer 0 is
+// saved around it. Temp and pointer 1 need no saving, the generated code never
+// keeps them across a call. Statics belong to their file, so a subroutine
+// using them is only inlined into its own class.
+class Inliner {
+    private int budget;
+    private HashMap<String, Callee> callees = new HashMap<>();
+    int inlinedSites = 0;
+    TreeSet<String> inlined = new TreeSet<>();
+
+    static class Callee {
+	String file;
+	VmCode code;
+	int start;          // the body is [start, end), between the function and the return
+	int end;
+	int locals;
+	int maxArgument = -1;
+	int[] argumentUses = new int[0];
+	boolean usesStatic;
+	boolean setsThis;
+    }
+
+    public Inliner(int b) {
+	budget = b;
+    }
+
+    public void inline(List<CompileResult> results) {
+	for (CompileResult r:results) {
+	    findCallees(r.getFileName(), r.getCode());
+	}
+	for (CompileResult r:results) {
+	    r.setCode(inlineCalls(r.getFileName(), r.getCode()));
+	}
+    }
+
+    private void findCallees(String file, VmCode code) {
+	int i = 0;
+	while (i < code.size()) {
+	    //One function per step: [i, next)
+	    int next = i + 1;
+	    while (next < code.size() && code.ops[next] != VmCode.FUNCTION) {
+		next++;
+	    }
+	    if (code.ops[i] == VmCode.FUNCTION) {
+		Callee c = analyse(file, code, i, next);
+		if (c != null) {
+		    callees.put(code.nameOf(code.names[i]), c);
+		}
+	    }
+	    i = next;
+	}
+    }
+
+    // The function at [header, next) as a Callee, or null if it can't be inlined
+    private Callee analyse(String file, VmCode code, int header, int next) {
+	int end = next - 1;
+	if (end <= header || code.ops[end] != VmCode.RETURN || end - header - 1 > budget) {
+	    return null;
+	}
+	Callee c = new Callee();
+	c.file = file;
+	c.code = code;
+	c.start = header + 1;
+	c.end = end;
+	c.locals = code.operands[header];
+	for (int i = c.start; i < c.end; i++) {
+	    int op = code.ops[i];
+	    if (op == VmCode.LABEL || op == VmCode.GOTO || op == VmCode.IF_GOTO || op == VmCode.RETURN
+		|| (op == VmCode.CALL && code.names[i] == code.names[header])) {
+		return null;
+	    }
+	    if (op == VmCode.PUSH || op == VmCode.POP) {
+		int segment = code.segments[i];
+		if (segment == VmCode.ARGUMENT) {
+		    int a = code.operands[i];
+		    if (a >= c.argumentUses.length) {
+			c.argumentUses = Arrays.copyOf(c.argumentUses, a + 1);
+		    }
+		    c.argumentUses[a]++;
+		    c.maxArgument = Math.max(c.maxArgument, a);
+		} else if (segment == VmCode.STATIC) {
+		    c.usesStatic = true;
+		} else if (op == VmCode.POP && segment == VmCode.POINTER && code.operands[i] == 0) {
+		    c.setsThis = true;
+		}
+	    }
+	}
+	return c;
+    }
+
+    private VmCode inlineCalls(String file, VmCode code) {
+	VmCode out = new VmCode(code);
+	int header = -1;
+	int extra = 0;
+	boolean usesThis = false;
+	for (int i = 0; i < code.size(); i++) {
+	    int op = code.ops[i];
+	    if (op == VmCode.FUNCTION) {
+		if (header >= 0) {
+		    out.operands[header] += extra;
+		}
+		header = out.size();
+		extra = 0;
+		usesThis = usesThis(code, i);
+		out.copy(code, i);
+		continue;
+	    }
+	    if (op == VmCode.CALL && header >= 0) {
+		String name = code.nameOf(code.names[i]);
+		Callee c = callees.get(name);
+		int args = code.operands[i];
+		if (c != null && c.maxArgument < args && (!c.usesStatic || c.file.equals(file))
+		    && code.names[i] != out.names[header]) {
+		    extra = Math.max(extra, inlineCall(out, c, args, out.operands[header], usesThis));
+		    inlinedSites++;
+		    inlined.add(name);
+		    continue;
+		}
+	    }
+	    out.copy(code, i);
+	}
+	if (header >= 0) {
+	    out.operands[header] += extra;
+	}
+	return out;
+    }
+
+    // Whether the function starting at 'header' reads this or pointer 0
+    private static boolean usesThis(VmCode code, int header) {
+	for (int i = header + 1; i < code.size() && code.ops[i] != VmCode.FUNCTION; i++) {
+	    if ((code.ops[i] == VmCode.PUSH || code.ops[i] == VmCode.POP) && code.segments[i] == VmCode.THIS) {
+		return true;
+	    }
+	    if (code.ops[i] == VmCode.PUSH && code.segments[i] == VmCode.POINTER && code.operands[i] == 0) {
+		return true;
+	    }
+	}
+	return false;
+    }
+
+    // Writes the body of 'c' in place of a call with 'args' arguments. Its slots start
+    // at local 'base' of the caller. Returns how many locals the caller needs for it.
+    private int inlineCall(VmCode out, Callee c, int args, int base, boolean usesThis) {
+	int slots = args + c.locals;
+	boolean save = c.setsThis && usesThis;
+	if (save) {
+	    out.push(VmCode.POINTER, 0);
+	    out.pop(VmCode.LOCAL, base + slots);
+	}
+	//A single argument is still on top of the stack, if the body starts by pushing it
+	//and never reads it again it can stay there. With more, the others are under it
+	//and can only be popped after it.
+	int from = c.start;
+	int lastPopped = args - 1;
+	if (args == 1 && c.argumentUses.length >= 1 && c.argumentUses[0] == 1
+	    && c.code.ops[from] == VmCode.PUSH && c.code.segments[from] == VmCode.ARGUMENT
+	    && c.code.operands[from] == 0) {
+	    from++;
+	    lastPopped--;
+	}
+	for (int a = lastPopped; a >= 0; a--) {
+	    out.pop(VmCode.LOCAL, base + a);
+	}
+	for (int j = 0; j < c.locals; j++) {
+	    out.push(VmCode.CONSTANT, 0);
+	    out.pop(VmCode.LOCAL, base + args + j);
+	}
+	for (int i = from; i < c.end; i++) {
+	    int op = c.code.ops[i];
+	    int segment = c.code.segments[i];
+	    if ((op == VmCode.PUSH || op == VmCode.POP) && segment == VmCode.ARGUMENT) {
+		out.add(op, VmCode.LOCAL, base + c.code.operands[i], -1);
+	    } else if ((op == VmCode.PUSH || op == VmCode.POP) && segment == VmCode.LOCAL) {
+		out.add(op, VmCode.LOCAL, base + args + c.code.operands[i], -1);
+	    } else {
+		out.copy(c.code, i);
+	    }
+	}
+	if (save) {
+	    out.push(VmCode.LOCAL, base + slots);
+	    out.pop(VmCode.POINTER, 0);
+	}
+	return slots + (save ? 1 : 0);
+    }
+}
+
+// Writes VmCode out as .vm text
+class VmEmitter {
+
+    public static String toText(VmCode code) {
+	StringBuilder b = new StringBuilder(code.size() * 12);
+	write(code, b);
+	return b.toString();
+    }
+
+    public static void write(VmCode code, StringBuilder b) {
+	for (int i = 0; i < code.size; i++) {
+	    writeInstruction(code, i, b);
+	    b.append('\n');
+	}
+    }
+
+    static void writeInstruction(VmCode code, int i, StringBuilder b) {
+	int op = code.ops[i];
+	b.append(VmCode.OP_NAMES[op]);
+	switch (op) {
+	    case VmCode.PUSH:
+	    case VmCode.POP:
+		b.append(' ').append(VmCode.SEGMENT_NAMES[code.segments[i]]).append(' ').append(code.operands[i]);
+		break;
+	    case VmCode.LABEL:
+	    case VmCode.GOTO:
+	    case VmCode.IF_GOTO:
+		b.append(' ').append(code.nameOf(code.names[i]));
+		break;
+	    case VmCode.FUNCTION:
+	    case VmCode.CALL:
+		b.append(' ').append(code.nameOf(code.names[i])).append(' ').append(code.operands[i]);
+		break;
+	    default:
+		break;
+	}
+    }
+}
+
+// Streams VmCode into a .vm file without building the text first
+class VmWriter {
+    private static final byte[][] OP_BYTES = ChannelOutput.ascii(VmCode.OP_NAMES);
+    private static final byte[][] SEGMENT_BYTES = ChannelOutput.ascii(VmCode.SEGMENT_NAMES);
+
+    private ChannelOutput out;
+    private byte[][] nameBytes;    // encoded names, filled in as they are first written
+    private VmCode code;
+
+    private VmWriter(VmCode c, ChannelOutput o) {
+	code = c;
+	out = o;
+	nameBytes = new byte[c.nameTable.size()][];
+    }
+
+    // Writes the code to 'path', returns the SHA-256 of the bytes written
+    public static String write(VmCode code, Path path) throws IOException {
+	try (ChannelOutput out = new ChannelOutput(path)) {
+	    VmWriter w = new VmWriter(code, out);
+	    for (int i = 0; i < code.size; i++) {
+		w.writeInstruction(i);
+	    }
+	    return out.commit();
+	}
+    }
+
+    // Same text as VmEmitter.writeInstruction
+    private void writeInstruction(int i) throws IOException {
+	int op = code.ops[i];
+	out.put(OP_BYTES[op]);
+	switch (op) {
+	    case VmCode.PUSH:
+	    case VmCode.POP:
+		out.put((byte) ' ');
+		out.put(SEGMENT_BYTES[code.segments[i]]);
+		out.put((byte) ' ');
+		out.putInt(code.operands[i]);
+		break;
+	    case VmCode.LABEL:
+	    case VmCode.GOTO:
+	    case VmCode.IF_GOTO:
+		out.put((byte) ' ');
+		out.put(name(code.names[i]));
+		break;
+	    case VmCode.FUNCTION:
+	    case VmCode.CALL:
+		out.put((byte) ' ');
+		out.put(name(code.names[i]));
+		out.put((byte) ' ');
+		out.putInt(code.operands[i]);
+		break;
+	    default:
+		break;
+	}
+	out.put((byte) '\n');
+    }
+
+    private byte[] name(int id) {
+	if (id >= nameBytes.length) {
+	    //Named after the writer was made, the table only grows
+	    nameBytes = Arrays.copyOf(nameBytes, code.nameTable.size());
+	}
+	if (nameBytes[id] == null) {
+	    nameBytes[id] = code.nameOf(id).getBytes(StandardCharsets.UTF_8);
+	}
+	return nameBytes[id];
+    }
+}
+
+// Reads .vm text into VmCode. Only used for .vm files this run did not compile,
+// like the OS library or files the build cache skipped.
+class VmReader {
+
+    public static VmCode read(Path path) throws IOException {
+	VmCode code = new VmCode();
+	int lineNumber = 0;
+	try (BufferedReader reader = Files.newBufferedReader(path, StandardCharsets.UTF_8)) {
+	    String line;
+	    while ((line = reader.readLine()) != null) {
+		lineNumber++;
+		int comment = line.indexOf("//");
+		if (comment >= 0) {
+		    line = line.substring(0, comment);
+		}
+		line = line.trim();
+		if (line.isEmpty()) {
+		    continue;
+		}
+		try {
+		    readInstruction(code, line.split("\\s+"));
+		} catch (RuntimeException e) {
+		    throw new IllegalStateException(path + ":" + lineNumber + ": bad VM command: " + line, e);
+		}
+	    }
+	}
+	return code;
+    }
+
+    private static void readInstruction(VmCode code, String[] w) {
+	int op = Arrays.asList(VmCode.OP_NAMES).indexOf(w[0]);
+	switch (op) {
+	    case VmCode.PUSH:
+	    case VmCode.POP:
+		code.add(op, VmCode.segmentCode(w[1]), Integer.parseInt(w[2]), -1);
+		break;
+	    case VmCode.LABEL:
+	    case VmCode.GOTO:
+	    case VmCode.IF_GOTO:
+		code.add(op, 0, 0, code.name(w[1]));
+		break;
+	    case VmCode.FUNCTION:
+	    case VmCode.CALL:
+		code.add(op, 0, Integer.parseInt(w[2]), code.name(w[1]));
+		break;
+	    case -1:
+		throw new IllegalArgumentException("Unknown command " + w[0]);
+	    default:
+		code.add(op, 0, 0, -1);
+		break;
 	}
     }
+}
 
-    void compileSubroutineBody() {
-	t.advance();
-	// varDec*
-	while (t.getToken().equals("var")) {
-	    compileVarDec();
-	}
+// Translates VmCode into Hack assembly in the same process, the stage that used
+// to be a separate tool reading the .vm files back in. Writes one .asm for the
+// whole program: the bootstrap (SP = 256, call Sys.init), then every file in turn.
+// Calls and returns jump to one shared copy of the frame code ($call / $return)
+// instead of repeating ~45 instructions at every site.
+// Statics of file Foo are the symbols Foo.0, Foo.1, ... and labels are scoped as
+// function$label, like the standard VM translator does it.
+class HackAsmWriter {
+    private ChannelOutput out;
+    private int labelCount = 0;     // for return addresses and comparisons, unique in the program
+    private String fileName;        // prefix of static symbols
+    private String function = "";   // scope of labels
 
-	
+    private HackAsmWriter(ChannelOutput o) {
+	out = o;
     }
 
-    void compileVarDec() {
-	t.advance();
+    // 'names' are the file names (without .vm) of 'codes', in the order to write them
+    public static void writeProgram(Path path, List<String> names, List<VmCode> codes) throws IOException {
+	try (ChannelOutput out = new ChannelOutput(path)) {
+	    HackAsmWriter w = new HackAsmWriter(out);
+	    w.writeBootstrap();
+	    for (int k = 0; k < codes.size(); k++) {
+		w.fileName = names.get(k);
+		VmCode code = codes.get(k);
+		for (int i = 0; i < code.size; i++) {
+		    w.writeInstruction(code, i);
+		}
+	    }
+	    out.commit();
+	}
+    }
 
-	// type
-	String type = t.getToken();
-	t.advance();
+    private void writeBootstrap() throws IOException {
+	line("// bootstrap");
+	line("@256");
+	line("D=A");
+	line("@SP");
+	line("M=D");
+	function = "$bootstrap";
+	writeCall("Sys.init", 0);
+	line("($halt)");
+	line("@$halt");
+	line("0;JMP");
 
-	// varName
-	String name = t.getToken();
-	t.advance();
-	
-	st.insertSubroutineEntry(name, type, "local");
-	// (',' varName)*
-	while (t.getToken().equals(",")) {
-	    t.advance();
-	    name = t.getToken();
-	    st.insertSubroutineEntry(name, type, "local");
-	    t.advance();
+	//D = return address, R13 = argument count + 5, R14 = function
+	line("($call)");
+	pushD();
+	for (String register:new String[]{"LCL", "ARG", "THIS", "THAT"}) {
+	    line("@" + register);
+	    line("D=M");
+	    pushD();
 	}
-	t.advance();
+	line("@R13");
+	line("D=M");
+	line("@SP");
+	line("D=M-D");
+	line("@ARG");
+	line("M=D");
+	line("@SP");
+	line("D=M");
+	line("@LCL");
+	line("M=D");
+	line("@R14");
+	line("A=M");
+	line("0;JMP");
+
+	line("($return)");
+	line("@LCL");
+	line("D=M");
+	line("@R13");
+	line("M=D");
+	line("@5");
+	line("A=D-A");
+	line("D=M");
+	line("@R14");
+	line("M=D");
+	popD();
+	line("@ARG");
+	line("A=M");
+	line("M=D");
+	line("@ARG");
+	line("D=M+1");
+	line("@SP");
+	line("M=D");
+	for (String register:new String[]{"THAT", "THIS", "ARG", "LCL"}) {
+	    line("@R13");
+	    line("AM=M-1");
+	    line("D=M");
+	    line("@" + register);
+	    line("M=D");
+	}
+	line("@R14");
+	line("A=M");
+	line("0;JMP");
+
+	writeCompare("$gt", "JGT");
+	writeCompare("$lt", "JLT");
     }
 
-    void compileStatements() {
-	// statement*
-	String cToken = t.getToken();
-	while (!t.getToken().equals("}")) {
-	    compileStatement();
+    //R15 = return address. Replaces x and y on the stack with x > y (or x < y).
+    //x - y can overflow when the signs differ, then the signs alone decide.
+    private void writeCompare(String name, String jump) throws IOException {
+	line("(" + name + ")");
+	popD();
+	line("@R13");
+	line("M=D");
+	line("@SP");
+	line("A=M-1");
+	line("D=M");
+	line("@" + name + ".xneg");
+	line("D;JLT");
+	line("@R13");
+	line("D=M");
+	line("@" + name + ".same");
+	line("D;JGE");
+	line("D=1");
+	line("@" + name + ".decide");
+	line("0;JMP");
+	line("(" + name + ".xneg)");
+	line("@R13");
+	line("D=M");
+	line("@" + name + ".same");
+	line("D;JLT");
+	line("D=-1");
+	line("@" + name + ".decide");
+	line("0;JMP");
+	line("(" + name + ".same)");
+	line("@R13");
+	line("D=M");
+	line("@SP");
+	line("A=M-1");
+	line("D=M-D");
+	line("(" + name + ".decide)");
+	line("@SP");
+	line("A=M-1");
+	line("M=-1");
+	line("@" + name + ".true");
+	line("D;" + jump);
+	line("@SP");
+	line("A=M-1");
+	line("M=0");
+	line("(" + name + ".true)");
+	line("@R15");
+	line("A=M");
+	line("0;JMP");
+    }
+
+    private void writeInstruction(VmCode code, int i) throws IOException {
+	int op = code.ops[i];
+	switch (op) {
+	    case VmCode.PUSH:
+		writePush(code.segments[i], code.operands[i]);
+		break;
+	    case VmCode.POP:
+		writePop(code.segments[i], code.operands[i]);
+		break;
+	    case VmCode.ADD:
+		binary("M=D+M");
+		break;
+	    case VmCode.SUB:
+		binary("M=M-D");
+		break;
+	    case VmCode.AND:
+		binary("M=D&M");
+		break;
+	    case VmCode.OR:
+		binary("M=D|M");
+		break;
+	    case VmCode.NEG:
+		unary("M=-M");
+		break;
+	    case VmCode.NOT:
+		unary("M=!M");
+		break;
+	    case VmCode.EQ:
+		compare("JEQ");
+		break;
+	    case VmCode.GT:
+		signedCompare("$gt");
+		break;
+	    case VmCode.LT:
+		signedCompare("$lt");
+		break;
+	    case VmCode.LABEL:
+		line("(" + function + "$" + code.nameOf(code.names[i]) + ")");
+		break;
+	    case VmCode.GOTO:
+		line("@" + function + "$" + code.nameOf(code.names[i]));
+		line("0;JMP");
+		break;
+	    case VmCode.IF_GOTO:
+		popD();
+		line("@" + function + "$" + code.nameOf(code.names[i]));
+		line("D;JNE");
+		break;
+	    case VmCode.FUNCTION:
+		function = code.nameOf(code.names[i]);
+		line("(" + function + ")");
+		writeLocals(code.operands[i]);
+		break;
+	    case VmCode.CALL:
+		writeCall(code.nameOf(code.names[i]), code.operands[i]);
+		break;
+	    case VmCode.RETURN:
+		line("@$return");
+		line("0;JMP");
+		break;
+	    default:
+		throw new IllegalStateException("Unknown VM op " + op);
 	}
     }
 
-    void compileStatement() {
-	// Determines the type of statement and calls the appropriate method
-	String cToken = t.getToken();
-	switch (cToken) {
-	    case "let":
-		compileLet();
+    private void writePush(int segment, int index) throws IOException {
+	switch (segment) {
+	    case VmCode.CONSTANT:
+		line("@" + index);
+		line("D=A");
 		break;
-	    case "if":
-		compileIf();
+	    case VmCode.LOCAL:
+	    case VmCode.ARGUMENT:
+	    case VmCode.THIS:
+	    case VmCode.THAT:
+		if (index <= 1) {
+		    line("@" + baseRegister(segment));
+		    line(index == 0 ? "A=M" : "A=M+1");
+		} else {
+		    line("@" + index);
+		    line("D=A");
+		    line("@" + baseRegister(segment));
+		    line("A=D+M");
+		}
+		line("D=M");
 		break;
-	    case "while":
-		compileWhile();
+	    default:
+		line("@" + fixedAddress(segment, index));
+		line("D=M");
 		break;
-	    case "do":
-		compileDo();
+	}
+	pushD();
+    }
+
+    private void writePop(int segment, int index) throws IOException {
+	switch (segment) {
+	    case VmCode.LOCAL:
+	    case VmCode.ARGUMENT:
+	    case VmCode.THIS:
+	    case VmCode.THAT:
+		if (index <= 4) {
+		    popD();
+		    line("@" + baseRegister(segment));
+		    line("A=M");
+		    for (int k = 0; k < index; k++) {
+			line("A=A+1");
+		    }
+		} else {
+		    line("@" + index);
+		    line("D=A");
+		    line("@" + baseRegister(segment));
+		    line("D=D+M");
+		    line("@R13");
+		    line("M=D");
+		    popD();
+		    line("@R13");
+		    line("A=M");
+		}
+		line("M=D");
 		break;
-	    case "return":
-		compileReturn();
+	    case VmCode.CONSTANT:
+		throw new IllegalStateException("Can't pop to constant");
+	    default:
+		popD();
+		line("@" + fixedAddress(segment, index));
+		line("M=D");
 		break;
+	}
+    }
+
+    private static String baseRegister(int segment) {
+	switch (segment) {
+	    case VmCode.LOCAL:
+		return "LCL";
+	    case VmCode.ARGUMENT:
+		return "ARG";
+	    case VmCode.THIS:
+		return "THIS";
 	    default:
-		throw new IllegalStateException("Unexpected statement: " + cToken);
+		return "THAT";
 	}
     }
 
-    void compileLet() {
-	//let
-	t.advance();
-	String name = t.getToken();	
-	boolean isArrayAcc = false;
+    private String fixedAddress(int segment, int index) {
+	switch (segment) {
+	    case VmCode.POINTER:
+		return index == 0 ? "THIS" : "THAT";
+	    case VmCode.TEMP:
+		return "R" + (5 + index);
+	    default:
+		return fileName + "." + index;
+	}
+    }
 
-	t.advance();
-	//Arrays
-	if (t.getToken().equals("[")) {
-	    isArrayAcc = true;
-	    t.advance();
-	    compileExpression();
-	    t.advance();
+    private void writeLocals(int count) throws IOException {
+	if (count == 0) {
+	    return;
 	}
-	//EQ-symbol
-	t.advance();
-	//Compile set value
-	compileExpression();
-	if (isArrayAcc) {
-	    b.append("pop temp 0\n");
-	    b.append("push "+st.checkForElement(name)+"\n");
-	    b.append("add\n");
-	    b.append("pop pointer 1\n");
-	    b.append("push temp 0\n");
-	    b.append("pop that 0\n");
-	    
-	} else {
-	    b.append("pop "+st.checkForElement(name)+"\n");
+	line("@SP");
+	line("A=M");
+	for (int k = 0; k < count; k++) {
+	    line("M=0");
+	    line("A=A+1");
 	}
-	t.advance();
+	line("D=A");
+	line("@SP");
+	line("M=D");
     }
 
-    void compileIf() {
-	int i = runningLoopIndex;
-	runningLoopIndex++;
+    private void writeCall(String name, int args) throws IOException {
+	String returnLabel = function + "$ret." + labelCount++;
+	line("@" + (args + 5));
+	line("D=A");
+	line("@R13");
+	line("M=D");
+	line("@" + name);
+	line("D=A");
+	line("@R14");
+	line("M=D");
+	line("@" + returnLabel);
+	line("D=A");
+	line("@$call");
+	line("0;JMP");
+	line("(" + returnLabel + ")");
+    }
 
-	//if
-	t.advance();
-	
-	//(expression)
-	t.advance();
-	compileExpression();
-	t.advance();
-	
-	b.append("not\n");
-	b.append("if-goto "+className+Integer.toString(i)+"L1\n");
-	t.advance();
-	compileStatements();
+    private void binary(String operation) throws IOException {
+	popD();
+	line("A=A-1");
+	line(operation);
+    }
 
-	t.advance();
-	b.append("goto "+className+Integer.toString(i)+"L2\n");
-	b.append("label "+className+Integer.toString(i)+"L1\n");
+    private void unary(String operation) throws IOException {
+	line("@SP");
+	line("A=M-1");
+	line(operation);
+    }
 
-	if (t.getToken().equals("else")) {
-	    //else {statements}
-	    t.advance();
-	    t.advance();
-	    compileStatements();
-	    t.advance();
-	}
-	b.append("label "+className+Integer.toString(i)+"L2\n");
+    // Leaves -1 if x - y passes the jump test, else 0
+    //eq can't go wrong on an overflowing x - y, gt and lt go through writeCompare
+    private void signedCompare(String routine) throws IOException {
+	String label = function + "$cmp." + labelCount++;
+	line("@" + label);
+	line("D=A");
+	line("@R15");
+	line("M=D");
+	line("@" + routine);
+	line("0;JMP");
+	line("(" + label + ")");
     }
-    void compileWhile() {
-	int i = runningLoopIndex;
-	runningLoopIndex++;
-	b.append("label "+className+Integer.toString(i)+"L1\n");
-	t.advance();
-	
-	t.advance();
-	compileExpression();
-	b.append("not\n");
-	b.append("if-goto "+className+Integer.toString(i)+"L2\n");
-	t.advance();
-	t.advance();
-	compileStatements();
-	t.advance();
-	b.append("goto "+className+Integer.toString(i)+"L1\n");
-	b.append("label "+className+Integer.toString(i)+"L2\n");
 
+    private void compare(String jump) throws IOException {
+	String label = function + "$cmp." + labelCount++;
+	popD();
+	line("A=A-1");
+	line("D=M-D");
+	line("M=-1");
+	line("@" + label);
+	line("D;" + jump);
+	line("@SP");
+	line("A=M-1");
+	line("M=0");
+	line("(" + label + ")");
     }
 
-    void compileDo() {
-	t.advance();
-	
-	compileExpression();
-	t.advance();
-	//We append this to get rid of the return value; do doesn't care about it!
-	b.append("pop temp 0\n");
+    private void pushD() throws IOException {
+	line("@SP");
+	line("AM=M+1");
+	line("A=A-1");
+	line("M=D");
     }
 
-    void compileReturn() {
-	t.advance();
-	
-	if (!t.getToken().equals(";")) {
-	    compileExpression();
-	} else {
-	    b.append("push constant 0\n");
-	}
-	
-	t.advance();
+    private void popD() throws IOException {
+	line("@SP");
+	line("AM=M-1");
+	line("D=M");
+    }
 
-	b.append("return\n");
+    private void line(String s) throws IOException {
+	out.put(s);
+	out.put((byte) '\n');
     }
-    void compileExpression() {
-	compileTerm();
-	
-	while (t.getToken().matches("\\+|-|\\*|/|&|\\||<|>|=")) {
-	    String op = t.getToken();
-	    t.advance();
-	    compileTerm();
-	    switch (op) {
-		case "+":
-		    b.append("add\n");
-		    break;
-		case "-":
-		    b.append("sub\n");
-		    break;
-		case "*":
-		    b.append("call Math.multiply 2\n");
-		    break;
-		case "/":
-		    b.append("call Math.divide 2\n");
-		    break;
-		case "&":
-		    b.append("and\n");
-		    break;
-		case "|":
-		    b.append("or\n");
-		    break;
-		case "<":
-		    b.append("lt\n");
-		    break;
-		case ">":
-		    b.append("gt\n");
-		    break;
-		case "=":
-		    b.append("eq\n");
-		    break;
-		
+}
+
+// An output file written through a direct buffer, which each thread keeps for
+// every file it writes. The buffer goes to the channel whenever it fills up, and
+// the bytes are hashed on the way for the build cache. The file is written under
+// a temp name next to the target and only moved into place by commit(), so a
+// failed compile never leaves half a file behind.
+class ChannelOutput implements AutoCloseable {
+    static final int BUFFER_SIZE = 64 * 1024;
+    private static final ThreadLocal<ByteBuffer> BUFFERS =
+	ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    private Path target;
+    private Path temp;
+    private FileChannel channel;
+    private ByteBuffer buffer;
+    private MessageDigest digest;
+
+    public ChannelOutput(Path path) throws IOException {
+	target = path;
+	temp = createTemp(path);
+	channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	buffer = BUFFERS.get();
+	buffer.clear();
+	digest = BuildCache.newDigest();
+    }
+
+    // A new empty file next to 'target', to write it under before moving it into place.
+    // Files.createTempFile would make it readable by the owner only, and the target
+    // with it. This one gets the permissions any new file gets.
+    static Path createTemp(Path target) throws IOException {
+	Path dir = target.toAbsolutePath().getParent();
+	while (true) {
+	    Path temp = dir.resolve(target.getFileName() + "." + ThreadLocalRandom.current().nextInt(Integer.MAX_VALUE) + ".tmp");
+	    try {
+		Files.newByteChannel(temp, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE).close();
+		return temp;
+	    } catch (FileAlreadyExistsException e) {
+		//Taken, try another name
 	    }
 	}
-	
     }
 
-    void compileTerm() {
-	String cToken = t.getToken();
-	String cType = t.getType();
-	if (cType.equals("integerConstant"))  {
-	    b.append("push constant "+cToken+"\n");
-	    t.advance();
+    public void put(byte b) throws IOException {
+	if (!buffer.hasRemaining()) {
+	    flush();
 	}
-	else if (cType.equals("StringConstant")) {
-	    //Create new String object and return the addr
-	    String strLen = Integer.toString(cToken.length());
-	    b.append("push constant "+strLen+"\n");
-	    b.append("call String.new 1\n");
-	    for (char c:cToken.toCharArray()) {
-		String charcode = charCodes.get(c);
-		b.append("push constant "+ charcode+"\n");
-		b.append("call String.appendChar 2\n");
-	    }
-	    t.advance();
-	} else if (cType.equals("keyword")) {
-	    switch (cToken) {
-		case "true":
-		    b.append("push constant 1\n");
-		    b.append("neg\n");
-		    break;
-		case "false":
-		    b.append("push constant 0\n");
-		    break;
-		case "null":
-		    b.append("push constant 0\n");
-		    break;
-		case "this":
-		    b.append("push pointer 0\n");
-		    break;
-		default:
-		    break;
-	    }
-	    t.advance();
+	buffer.put(b);
+    }
 
-	} else if (cToken.equals("(")) {
-	    t.advance();
-	    compileExpression();
-	    t.advance();
-	} else if (cToken.matches("-|~")) {
-	    t.advance();
-	    compileTerm();
-	    if (cToken.equals("-")){
-		b.append("neg\n");
-	    } else {
-		b.append("not\n");
-	    }
-	} else {
-	    String varname = t.getToken();
-	    t.advance();
-	    switch (t.getToken()) {
-		case "[":
-		    //Array Accessing
-		    t.advance();
-		    b.append("push "+st.checkForElement(varname)+"\n");
-		    compileExpression();
-		    b.append("add\n");
-		    b.append("pop pointer 1\n");
-		    b.append("push that 0\n");
-		    t.advance();
-		    break;
-		case ".":
-		    t.advance();
-		    String subroutineName = t.getToken();
-		    String test = null;
-		    try {
-			test = st.checkForElement(varname);
-			//we have a method call
-			b.append("push "+test+"\n");
-			t.advance();
-			t.advance();
-			compileExpressionList();
-			t.advance();
-			b.append("call "+st.checkTypeOf(varname)+"."+subroutineName+" "+Integer.toString(currentArgs+1)+"\n");
-		    } catch (Exception e) {
-			//functiono/constructor call
-			t.advance();
-			t.advance();
-			compileExpressionList();
-			t.advance();
-			b.append("call "+varname+"."+subroutineName+" "+Integer.toString(currentArgs)+"\n");
-		    }
-		    break;
-		case "(":
-		    //This is a method call inside the object itself
-		    b.append("push pointer 0\n");
-		    t.advance();
-		    compileExpressionList();
-		    t.advance();
-		    b.append("call " +className+"."+varname+" "+Integer.toString(currentArgs+1)+"\n");
-		    break;
-		default:
-		    b.append("push "+st.checkForElement(varname)+"\n");
-		    break;
+    public void put(byte[] bytes) throws IOException {
+	int offset = 0;
+	while (offset < bytes.length) {
+	    if (!buffer.hasRemaining()) {
+		flush();
 	    }
+	    int n = Math.min(bytes.length - offset, buffer.remaining());
+	    buffer.put(bytes, offset, n);
+	    offset += n;
 	}
     }
 
-    void compileExpressionList() {
-	//CurrentArgs WILL Break if someone puts a subroutine call inside a subroutine call's expression list
-	//I'm not fixing this
-	currentArgs = 0;
-	if (t.getToken().equals(")")){
-	    return;
+    // For text that is known to be ASCII
+    public void put(String s) throws IOException {
+	for (int i = 0; i < s.length(); i++) {
+	    put((byte) s.charAt(i));
 	}
-	compileExpression();
-	currentArgs ++;
-	while (t.getToken().equals(",")) {
-	    t.advance();
-	    compileExpression();
-	    currentArgs++;
+    }
+
+    public void putInt(int value) throws IOException {
+	if (value < 0) {
+	    put((byte) '-');
+	    value = -value;
 	}
-	
+	int divisor = 1;
+	while (value / divisor >= 10) {
+	    divisor *= 10;
+	}
+	for (; divisor > 0; divisor /= 10) {
+	    put((byte) ('0' + (value / divisor) % 10));
+	}
+    }
+
+    private void flush() throws IOException {
+	buffer.flip();
+	digest.update(buffer.duplicate());
+	while (buffer.hasRemaining()) {
+	    channel.write(buffer);
+	}
+	buffer.clear();
+    }
+
+    // Moves the finished file into place, returns the SHA-256 of its bytes
+    public String commit() throws IOException {
+	flush();
+	channel.close();
+	Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	return BuildCache.toHex(digest.digest());
+    }
+
+    // Without a commit the temp file is thrown away
+    public void close() throws IOException {
+	channel.close();
+	Files.deleteIfExists(temp);
+    }
+
+    static byte[][] ascii(String[] strings) {
+	byte[][] res = new byte[strings.length][];
+	for (int k = 0; k < strings.length; k++) {
+	    res[k] = strings[k].getBytes(StandardCharsets.US_ASCII);
+	}
+	return res;
     }
 }
 
 class SymbolTableEntry {
     private String name;
     private String type;
-    private String kind;
     private int index;
+    private String vmRef;
+    private byte segment;
 
-    public SymbolTableEntry(String n, String t, String k, int i) {
+    // 'segment' is the VmCode segment code of the kind: this, static, local or argument
+    public SymbolTableEntry(String n, String t, byte segment, int i) {
 	name = n;
 	type = t;
-	kind = k;
+	this.segment = segment;
 	index = i;
     }
     public String getName(){
@@ -784,25 +4572,40 @@ class SymbolTableEntry {
 	return type;
     }
     public String getKind(){
-	return kind;
+	return VmCode.SEGMENT_NAMES[segment];
     }
     public int getIndex(){
 	return index;
     }
+    // "segment index", as used by push and pop. Code generation goes by the segment
+    // code and index, so the string is only built for callers that ask for it.
+    public String getVmRef(){
+	if (vmRef == null) {
+	    vmRef = VmCode.SEGMENT_NAMES[segment] + " " + Integer.toString(index);
+	}
+	return vmRef;
+    }
+    // VmCode segment code of the kind
+    public byte getSegment(){
+	return segment;
+    }
 }
 
 class SymbolTable {
-    private List<SymbolTableEntry> classTable;
-    private List<SymbolTableEntry> subroutineTable;
+    //Hashed by name, so lookups take the same time however many symbols a scope has
+    private HashMap<String, SymbolTableEntry> classTable;
+    private HashMap<String, SymbolTableEntry> subroutineTable;
 
+    //Running indexes, which are also the per-kind counts
     private int staticIndex;
     private int thisIndex;
     private int localIndex;
     private int argumentIndex;
+    private long lookups = 0;    // for --stats
 
     public SymbolTable () {
-	classTable = new ArrayList<>();
-	subroutineTable = new ArrayList<>();
+	classTable = new HashMap<>();
+	subroutineTable = new HashMap<>();
 
 	staticIndex = 0;
 	thisIndex = 0;
@@ -810,23 +4613,37 @@ class SymbolTable {
 	argumentIndex = 0;
     }
 
-    public void insertClassEntry(String n, String t, String k) {
-	if (k.equals("this")) {
-	    classTable.add(new SymbolTableEntry(n, t, k, thisIndex));
+    //A table for one subroutine of the class in 'classScope'. The class scope is shared,
+    //and must not change while this one is in use, the subroutine scope is its own.
+    public SymbolTable (SymbolTable classScope) {
+	classTable = classScope.classTable;
+	subroutineTable = new HashMap<>();
+	staticIndex = classScope.staticIndex;
+	thisIndex = classScope.thisIndex;
+	localIndex = 0;
+	argumentIndex = 0;
+    }
+
+    //A repeated name keeps its first declaration, like the old list scan did
+    //'k' is VmCode.THIS or VmCode.STATIC
+    public void insertClassEntry(String n, String t, byte k) {
+	if (k == VmCode.THIS) {
+	    classTable.putIfAbsent(n, new SymbolTableEntry(n, t, k, thisIndex));
 	    thisIndex++;
-	} else if (k.equals("static")) {
-	    classTable.add(new SymbolTableEntry(n, t, k, staticIndex));	    
+	} else if (k == VmCode.STATIC) {
+	    classTable.putIfAbsent(n, new SymbolTableEntry(n, t, k, staticIndex));
 	    staticIndex++;
 	} else {
 	    throw new IllegalArgumentException("Trying to insert sometihng wrong to symboltable");
 	}
     }
-    public void insertSubroutineEntry(String n, String t, String k) {
-	if (k.equals("local")) {
-	    subroutineTable.add(new SymbolTableEntry(n, t, k, localIndex));
+    //'k' is VmCode.LOCAL or VmCode.ARGUMENT
+    public void insertSubroutineEntry(String n, String t, byte k) {
+	if (k == VmCode.LOCAL) {
+	    subroutineTable.putIfAbsent(n, new SymbolTableEntry(n, t, k, localIndex));
 	    localIndex++;
-	} else if (k.equals("argument")) {
-	    subroutineTable.add(new SymbolTableEntry(n, t, k, argumentIndex));
+	} else if (k == VmCode.ARGUMENT) {
+	    subroutineTable.putIfAbsent(n, new SymbolTableEntry(n, t, k, argumentIndex));
 	    argumentIndex++;
 	} else {
 	    throw new IllegalArgumentException("Trying to insert sometihng wrong to symboltable");
@@ -834,8 +4651,8 @@ class SymbolTable {
     }
 
     public void resetClass(){
-	classTable = new ArrayList<>();
-	subroutineTable = new ArrayList<>();
+	classTable.clear();
+	subroutineTable.clear();
 	staticIndex = 0;
 	thisIndex = 0;
 	localIndex = 0;
@@ -843,67 +4660,71 @@ class SymbolTable {
     }
     
     public void resetSubroutine() {
-	subroutineTable = new ArrayList<>();
+	subroutineTable.clear();
 	localIndex = 0;
 	argumentIndex = 0;
     }
 
-    public String checkTypeOf (String identifier) {
-    	for (SymbolTableEntry ste:subroutineTable) {
-	    if (ste.getName().equals(identifier)) {
-		String res = ste.getType();
-		return res;
-	    }
+    // First check in subroutineTable
+    // Then in ClassTable
+    private SymbolTableEntry find(String identifier) {
+	lookups++;
+	SymbolTableEntry ste = subroutineTable.get(identifier);
+	if (ste == null) {
+	    ste = classTable.get(identifier);
 	}
-	for (SymbolTableEntry ste:classTable) {
-	    if (ste.getName().equals(identifier)) {
-		String res = ste.getType();
-		return res;
-	    }
+	return ste;
+    }
+
+    //The entry, or null if the name is not declared. Unlike resolve this doesn't
+    //throw, so telling a variable from a class name costs no more than a map lookup.
+    public SymbolTableEntry lookup (String identifier) {
+	return find(identifier);
+    }
+
+    public String checkTypeOf (String identifier) {
+	SymbolTableEntry ste = find(identifier);
+	if (ste != null) {
+	    return ste.getType();
 	}
 	//RAISE ERROR HERE; STOP PROGRAM!!!
         throw new IllegalArgumentException("Identifier not found: " + identifier);
 
     }
+    public SymbolTableEntry resolve (String identifier) {
+	SymbolTableEntry ste = find(identifier);
+	if (ste != null) {
+	    return ste;
+	}
+	throw new IllegalArgumentException("Identifier not found: " + identifier);
+    }
     public String checkForElement (String identifier) {
-	// First check in subroutineTable
-	// Then in ClassTable
 	// If not found, raise error
-	for (SymbolTableEntry ste:subroutineTable) {
-	    if (ste.getName().equals(identifier)) {
-		String res = ste.getKind() + " " + Integer.toString(ste.getIndex());
-		return res;
-	    }
-	}
-	for (SymbolTableEntry ste:classTable) {
-	    if (ste.getName().equals(identifier)) {
-		String res = ste.getKind() + " " + Integer.toString(ste.getIndex());
-		return res;
-	    }
+	SymbolTableEntry ste = find(identifier);
+	if (ste != null) {
+	    return ste.getVmRef();
 	}
 	//RAISE ERROR HERE; STOP PROGRAM!!!
         throw new IllegalArgumentException("Identifier not found: " + identifier);
     }
     public int getArgCount() {
-	int count = 0;
-	for (SymbolTableEntry e:subroutineTable) {
-	    if (e.getKind().equals("argument")) { count++;}
-	}
-	return count;
+	return argumentIndex;
+    }
+    public int getStaticCount() {
+	return staticIndex;
     }
     public int getFieldCount() {
-	int count = 0;
-	for (SymbolTableEntry e:classTable) {
-	    if (e.getKind().equals("this")) { count++;}
-	}
-	return count;
+	return thisIndex;
     }
     public int getLocalCount() {
-	int count =0;
-	for (SymbolTableEntry e:subroutineTable){
-	    if (e.getKind().equals("local")) { count++; }
-	}
-	return count;
+	return localIndex;
+    }
+    public long getLookupCount() {
+	return lookups;
+    }
+    // Adds the lookups made through another table, for --stats
+    public void countLookups(long n) {
+	lookups += n;
     }
 
 }
@@ -0,0 +1,24 @@
+package jack;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+// Main class of benchmarks.jar. Takes the usual JMH command line
+// (e.g. a benchmark regex, -p scopeSize=64, -rf json) and always adds the
+// GC profiler, which reports allocation per operation (gc.alloc.rate.norm)
+// next to GC counts and times.
+
+public class BenchmarkRunner {
+
+    public static void main(String[] args) throws Exception {
+	CommandLineOptions cmd = new CommandLineOptions(args);
+	Options options = new OptionsBuilder()
+	    .parent(cmd)
+	    .addProfiler(GCProfiler.class)
+	    .build();
+	new Runner(options).run();
+    }
+}
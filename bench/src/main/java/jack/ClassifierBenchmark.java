@@ -0,0 +1,104 @@
+package jack;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// Tokenizer.classifyWord against the parseInt/try-catch + String.equals
+// chain it replaced. Time is per word.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassifierBenchmark {
+    //A mix that looks like real Jack code: mostly identifiers, then keywords, then numbers
+    static final String[] WORDS = {"let", "x", "counter", "Output", "printInt", "this", "i", "sum", "do",
+				   "Math", "multiply", "return", "0", "1", "42", "32767", "while", "var", "int",
+				   "buffer", "length", "if", "else", "Array", "new", "field", "static", "y",
+				   "function", "void", "method", "dispose", "true", "false", "null", "char",
+				   "boolean", "class", "constructor", "address", "Screen", "drawRectangle"};
+
+    char[] text;
+    int[] starts;
+    int[] lengths;
+
+    @Setup
+    public void setup() {
+	StringBuilder all = new StringBuilder();
+	starts = new int[WORDS.length];
+	lengths = new int[WORDS.length];
+	for (int i = 0; i < WORDS.length; i++) {
+	    starts[i] = all.length();
+	    lengths[i] = WORDS[i].length();
+	    all.append(WORDS[i]);
+	}
+	text = all.toString().toCharArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(42)
+    public void legacy(Blackhole bh) {
+	for (String w:WORDS) {
+	    bh.consume(legacyTokenType(w));
+	}
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(42)
+    public void classifyWord(Blackhole bh) {
+	for (int i = 0; i < starts.length; i++) {
+	    bh.consume(Tokenizer.classifyWord(text, starts[i], lengths[i]));
+	}
+    }
+
+    //The classifier Tokenizer used before, kept here as the baseline
+    static String legacyTokenType(String token) {
+	if (token.charAt(0) == '"' && token.charAt(token.length()-1) == '"') {
+	    return "StringConstant";
+	}
+	else try {
+	    Integer.parseInt(token);
+	    return "integerConstant";
+	} catch (Exception e) {
+	}
+	if (token.equals("class") ||
+	    token.equals("constructor") ||
+	    token.equals("function") ||
+	    token.equals("method") ||
+	    token.equals("field") ||
+	    token.equals("static") ||
+	    token.equals("var") ||
+	    token.equals("int") ||
+	    token.equals("char") ||
+	    token.equals("boolean") ||
+	    token.equals("void") ||
+	    token.equals("true") ||
+	    token.equals("false") ||
+	    token.equals("null") ||
+	    token.equals("this") ||
+	    token.equals("let") ||
+	    token.equals("do") ||
+	    token.equals("if") ||
+	    token.equals("else") ||
+	    token.equals("while") ||
+	    token.equals("return")) {
+	    return "keyword";
+	} else {
+	    return "identifier";
+	}
+    }
+}
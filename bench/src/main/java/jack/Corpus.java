@@ -0,0 +1,63 @@
+package jack;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+// Benchmark inputs. The Tokenizer reads from files, so every input is
+// written to a temp directory first.
+//   real:<Name>         one of the Jack programs in src/main/resources/corpus
+//   generated:<n>       a generated class with n subroutines (fixed seed)
+
+public class Corpus {
+    static final String[] REAL = {"Arrays", "Basic", "List", "Point", "Square"};
+    static final long SEED = 20240601L;
+
+    public static Path write(String input, Path dir) throws IOException {
+	String source;
+	String name;
+	if (input.startsWith("real:")) {
+	    name = input.substring("real:".length());
+	    source = readResource("corpus/" + name + ".jack");
+	} else if (input.startsWith("generated:")) {
+	    int subroutines = Integer.parseInt(input.substring("generated:".length()));
+	    name = "Gen" + subroutines;
+	    source = new CorpusGenerator(SEED).generateClass(name, subroutines, 12, 4);
+	} else {
+	    throw new IllegalArgumentException("Unknown benchmark input: " + input);
+	}
+	Path file = dir.resolve(name + ".jack");
+	Files.write(file, source.getBytes(StandardCharsets.UTF_8));
+	return file;
+    }
+
+    // All of the real programs
+    public static List<Path> writeReal(Path dir) throws IOException {
+	List<Path> files = new ArrayList<>();
+	for (String name:REAL) {
+	    files.add(write("real:" + name, dir));
+	}
+	return files;
+    }
+
+    static String readResource(String name) throws IOException {
+	try (InputStream in = Corpus.class.getClassLoader().getResourceAsStream(name)) {
+	    if (in == null) {
+		throw new IOException("Missing benchmark resource " + name);
+	    }
+	    return new String(in.readAllBytes(), StandardCharsets.UTF_8);
+	}
+    }
+
+    static void deleteAll(Path dir) throws IOException {
+	try (var paths = Files.walk(dir)) {
+	    for (Path p:paths.sorted((x, y) -> y.compareTo(x)).toArray(Path[]::new)) {
+		Files.deleteIfExists(p);
+	    }
+	}
+    }
+}
@@ -0,0 +1,241 @@
+package jack;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Random;
+
+// Generates valid Jack classes from a seed, so generated benchmark inputs are
+// the same on every run. Every identifier used is declared and every call
+// goes to a subroutine with the right number of arguments.
+
+public class CorpusGenerator {
+    static final String[] OPS = {"+", "-", "*", "/", "&", "|", "<", ">", "="};
+
+    private Random random;
+    private StringBuilder b;
+    private boolean inMethod;
+    private boolean[] isMethod;
+    private int subroutineIndex;
+    private String className;
+
+    public CorpusGenerator(long seed) {
+	random = new Random(seed);
+    }
+
+    // A class with 'subroutines' subroutines of about 'statements' statements each.
+    // Expressions nest at most maxDepth terms deep.
+    public String generateClass(String name, int subroutines, int statements, int maxDepth) {
+	StringWriter out = new StringWriter();
+	try {
+	    writeClass(out, name, subroutines, statements, maxDepth);
+	} catch (IOException e) {
+	    throw new IllegalStateException(e);
+	}
+	return out.toString();
+    }
+
+    // Same as generateClass, written to 'out' a subroutine at a time, so a class
+    // can be far bigger than what would fit in one String
+    public void writeClass(Writer out, String name, int subroutines, int statements, int maxDepth) throws IOException {
+	b = new StringBuilder();
+	className = name;
+	header(name);
+	isMethod = new boolean[subroutines];
+	for (int k = 0; k < subroutines; k++) {
+	    isMethod[k] = random.nextInt(3) == 0;
+	}
+	for (int k = 0; k < subroutines; k++) {
+	    subroutineIndex = k;
+	    inMethod = isMethod[k];
+	    String kind = inMethod ? "method" : "function";
+	    b.append("    " + kind + " int " + subroutineName(k) + "(int a0, int a1) {\n");
+	    b.append("        var int l0, l1, l2;\n");
+	    for (int i = 0; i < statements; i++) {
+		statement(2, maxDepth);
+	    }
+	    b.append("        return ");
+	    expression(maxDepth);
+	    b.append(";\n");
+	    b.append("    }\n\n");
+	    out.append(b);
+	    b.setLength(0);
+	}
+	b.append("}\n");
+	out.append(b);
+    }
+
+    // A class whose 'statements' let statements each nest parentheses 'depth' deep,
+    // like let l0 = (l1 + (-(a0 - (... (l2) ...))));
+    public String generateNested(String name, int statements, int depth) {
+	b = new StringBuilder();
+	className = name;
+	inMethod = false;
+	header(name);
+	b.append("    function int nested(int a0, int a1) {\n");
+	b.append("        var int l0, l1, l2;\n");
+	for (int i = 0; i < statements; i++) {
+	    b.append("        let " + variable() + " = ");
+	    for (int d = 0; d < depth; d++) {
+		if (random.nextInt(4) == 0) {
+		    b.append(random.nextBoolean() ? "-(" : "~(");
+		} else {
+		    b.append("(" + variable() + " " + OPS[random.nextInt(OPS.length)] + " ");
+		}
+	    }
+	    b.append(variable());
+	    for (int d = 0; d < depth; d++) {
+		b.append(")");
+	    }
+	    b.append(";\n");
+	}
+	b.append("        return l0;\n");
+	b.append("    }\n}\n");
+	return b.toString();
+    }
+
+    // A class that prints 'literals' string constants of 'length' chars each
+    public String generateStrings(String name, int literals, int length) {
+	b = new StringBuilder();
+	className = name;
+	header(name);
+	b.append("    function void strings() {\n");
+	for (int i = 0; i < literals; i++) {
+	    b.append("        do Output.printString(\"" + word(length) + "\");\n");
+	}
+	b.append("        return;\n");
+	b.append("    }\n}\n");
+	return b.toString();
+    }
+
+    private void header(String name) {
+	b.append("/** Generated class " + name + " */\n");
+	b.append("class " + name + " {\n");
+	b.append("    field int f0, f1, f2, f3;\n");
+	b.append("    static int s0, s1;\n\n");
+	b.append("    constructor " + name + " new() {\n");
+	b.append("        let f0 = 1;\n");
+	b.append("        return this;\n");
+	b.append("    }\n\n");
+    }
+
+    static String subroutineName(int k) {
+	return "sub" + k;
+    }
+
+    private void indent(int level) {
+	for (int i = 0; i < level; i++) {
+	    b.append("    ");
+	}
+    }
+
+    private void statement(int level, int maxDepth) {
+	indent(level);
+	int choice = level > 4 ? random.nextInt(3) : random.nextInt(6);
+	switch (choice) {
+	    case 0:
+	    case 1:
+		b.append("let " + variable() + " = ");
+		expression(maxDepth);
+		b.append(";\n");
+		break;
+	    case 2:
+		b.append("do Output.printInt(");
+		expression(maxDepth);
+		b.append(");\n");
+		break;
+	    case 3:
+		b.append("if (");
+		expression(maxDepth);
+		b.append(") {\n");
+		statement(level + 1, maxDepth);
+		indent(level);
+		b.append("} else {\n");
+		statement(level + 1, maxDepth);
+		indent(level);
+		b.append("}\n");
+		break;
+	    case 4:
+		b.append("while (l0 < " + random.nextInt(100) + ") {\n");
+		statement(level + 1, maxDepth);
+		indent(level + 1);
+		b.append("let l0 = l0 + 1;\n");
+		indent(level);
+		b.append("}\n");
+		break;
+	    default:
+		b.append("do Output.printString(\"" + word(1 + random.nextInt(20)) + "\");\n");
+		break;
+	}
+    }
+
+    private String variable() {
+	int pick = random.nextInt(inMethod ? 9 : 7);
+	if (pick < 3) {
+	    return "l" + pick;
+	} else if (pick < 5) {
+	    return "a" + (pick - 3);
+	} else if (pick < 7) {
+	    return "s" + (pick - 5);
+	}
+	return "f" + (pick - 7);
+    }
+
+    private void expression(int depth) {
+	term(depth);
+	int ops = depth > 1 ? random.nextInt(3) : 0;
+	for (int i = 0; i < ops; i++) {
+	    b.append(" " + OPS[random.nextInt(OPS.length)] + " ");
+	    term(depth - 1);
+	}
+    }
+
+    private void term(int depth) {
+	int choice = depth > 1 ? random.nextInt(8) : random.nextInt(3);
+	switch (choice) {
+	    case 0:
+		b.append(random.nextInt(32768));
+		break;
+	    case 1:
+	    case 2:
+		b.append(variable());
+		break;
+	    case 3:
+	    case 4:
+		b.append("(");
+		expression(depth - 1);
+		b.append(")");
+		break;
+	    case 5:
+		b.append(random.nextBoolean() ? "-" : "~");
+		term(depth - 1);
+		break;
+	    case 6:
+		int callee = subroutineIndex > 0 ? random.nextInt(subroutineIndex) : 0;
+		if (subroutineIndex > 0 && !isMethod[callee]) {
+		    //Only call earlier functions, so there is no recursion if the code is ever run
+		    b.append(className + "." + subroutineName(callee) + "(");
+		    expression(depth - 1);
+		    b.append(", ");
+		    expression(depth - 1);
+		    b.append(")");
+		} else {
+		    b.append("Math.abs(");
+		    expression(depth - 1);
+		    b.append(")");
+		}
+		break;
+	    default:
+		b.append(random.nextBoolean() ? "true" : "null");
+		break;
+	}
+    }
+
+    private String word(int length) {
+	StringBuilder w = new StringBuilder();
+	for (int i = 0; i < length; i++) {
+	    w.append((char) ('a' + random.nextInt(26)));
+	}
+	return w.toString();
+    }
+}
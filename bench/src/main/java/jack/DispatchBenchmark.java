@@ -0,0 +1,123 @@
+package jack;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+// The checks CompileParser makes on every token: is it a binary operator,
+// which statement keyword is it, what kind is it. The typed Tokenizer codes
+// against the regex and String.equals/switch checks they replaced. One
+// operation is one pass over all tokens of the input.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    @Param({"real:Square", "generated:2000"})
+    public String input;
+
+    Path dir;
+    Tokenizer tokenizer;
+    String[] tokens;
+    String[] types;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	dir = Files.createTempDirectory("jack-dispatch-bench");
+	tokenizer = new Tokenizer(Corpus.write(input, dir).toString());
+	tokens = new String[tokenizer.tokenCount];
+	types = new String[tokenizer.tokenCount];
+	for (int i = 0; i < tokens.length; i++) {
+	    tokens[i] = tokenizer.getToken();
+	    types[i] = tokenizer.getType();
+	    tokenizer.advance();
+	}
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+	Corpus.deleteAll(dir);
+    }
+
+    @Benchmark
+    public void legacy(Blackhole bh) {
+	for (int i = 0; i < tokens.length; i++) {
+	    String token = tokens[i];
+	    bh.consume(token.matches("\\+|-|\\*|/|&|\\||<|>|="));
+	    bh.consume(token.matches("-|~"));
+	    bh.consume(types[i].equals("integerConstant"));
+	    switch (token) {
+		case "let":
+		    bh.consume(1);
+		    break;
+		case "if":
+		    bh.consume(2);
+		    break;
+		case "while":
+		    bh.consume(3);
+		    break;
+		case "do":
+		    bh.consume(4);
+		    break;
+		case "return":
+		    bh.consume(5);
+		    break;
+		default:
+		    bh.consume(0);
+		    break;
+	    }
+	}
+    }
+
+    @Benchmark
+    public void typed(Blackhole bh) {
+	tokenizer.resetIndex();
+	while (tokenizer.hasMoreTokens()) {
+	    char symbol = tokenizer.getSymbol();
+	    bh.consume(tokenizer.getOperator());
+	    bh.consume(symbol == '-' || symbol == '~');
+	    bh.consume(tokenizer.getKind() == Tokenizer.KIND_INT_CONST);
+	    switch (tokenizer.getKeyword()) {
+		case Tokenizer.KW_LET:
+		    bh.consume(1);
+		    break;
+		case Tokenizer.KW_IF:
+		    bh.consume(2);
+		    break;
+		case Tokenizer.KW_WHILE:
+		    bh.consume(3);
+		    break;
+		case Tokenizer.KW_DO:
+		    bh.consume(4);
+		    break;
+		case Tokenizer.KW_RETURN:
+		    bh.consume(5);
+		    break;
+		default:
+		    bh.consume(0);
+		    break;
+	    }
+	    tokenizer.advance();
+	}
+    }
+}
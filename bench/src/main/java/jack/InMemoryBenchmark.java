@@ -0,0 +1,77 @@
+package jack;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Compiles per second of one small class: through a reused InMemoryCompiler,
+// from a String and from UTF-8 bytes, against writing it to a temp file and
+// compiling that the way the command line does.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InMemoryBenchmark {
+
+    @Param({"real:Square", "generated:10"})
+    public String input;
+
+    Path dir;
+    Path file;
+    String source;
+    ByteBuffer bytes;
+    InMemoryCompiler compiler;
+    CompilerOptions options;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	dir = Files.createTempDirectory("jack-inmemory-bench");
+	file = Corpus.write(input, dir);
+	source = Files.readString(file);
+	bytes = ByteBuffer.wrap(source.getBytes(StandardCharsets.UTF_8));
+	compiler = new InMemoryCompiler();
+	options = new CompilerOptions();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+	Corpus.deleteAll(dir);
+    }
+
+    @Benchmark
+    public String fromString() {
+	return compiler.compile("Bench", source);
+    }
+
+    @Benchmark
+    public String fromBytes() {
+	bytes.rewind();
+	return compiler.compile("Bench", bytes);
+    }
+
+    @Benchmark
+    public CompileResult throughTempFile() throws IOException {
+	Files.writeString(file, source);
+	return JackCompiler.compileFile(file.toString(), options, null);
+    }
+}
@@ -0,0 +1,74 @@
+package jack;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Lexing throughput. The 'bytes' counter is reported in bytes per second;
+// divide by 1e6 for MB/s.
+
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LexerBenchmark {
+
+    @Param({"real:Square", "real:List", "generated:100", "generated:2000"})
+    public String input;
+
+    Path dir;
+    String file;
+    long size;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+	public long bytes;
+	public long tokens;
+
+	@Setup(Level.Iteration)
+	public void clear() {
+	    bytes = 0;
+	    tokens = 0;
+	}
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	dir = Files.createTempDirectory("jack-lexer-bench");
+	Path p = Corpus.write(input, dir);
+	file = p.toString();
+	size = Files.size(p);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+	Corpus.deleteAll(dir);
+    }
+
+    @Benchmark
+    public Tokenizer lex(Counters counters) {
+	Tokenizer t = new Tokenizer(file);
+	counters.bytes += size;
+	counters.tokens += t.tokenCount;
+	return t;
+    }
+}
@@ -0,0 +1,70 @@
+package jack;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Parse and code generation throughput, in tokens per second. The file is
+// lexed once in setup, so only CompileParser and SymbolTable are measured.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({"real:Square", "real:List", "generated:100", "generated:2000"})
+    public String input;
+
+    Path dir;
+    Tokenizer tokenizer;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+	public long tokens;
+
+	@Setup(Level.Iteration)
+	public void clear() {
+	    tokens = 0;
+	}
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+	dir = Files.createTempDirectory("jack-parser-bench");
+	tokenizer = new Tokenizer(Corpus.write(input, dir).toString());
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+	Corpus.deleteAll(dir);
+    }
+
+    @Benchmark
+    public String parseAndGenerate(Counters counters) {
+	tokenizer.resetIndex();
+	CompileParser cp = new CompileParser(tokenizer, new SymbolTable());
+	cp.compileClass();
+	counters.tokens += tokenizer.tokenCount;
+	return cp.getFileStr();
+    }
+}
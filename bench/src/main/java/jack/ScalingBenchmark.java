@@ -0,0 +1,325 @@
+package jack;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// End-to-end scaling runs, outside JMH: how the whole compile (finding the files,
+// lexing, parsing, writing the .vm) grows with the input. Each axis is a series
+// of generated inputs from CorpusGenerator with a fixed seed:
+//   size      one class of 1 KB up to 100 MB
+//   classes   1 up to 10,000 small classes in one directory
+//   nesting   expressions nested 1 up to 1,000 parentheses deep
+//   strings   string literals of 10 up to 100,000 chars
+// After a warm-up, every point is compiled --reps times and the median is kept. The curves are
+// written as CSV, and with --baseline a point that got slower than the same
+// point in an earlier CSV fails the run.
+//
+//   java -Xmx4g -cp bench/target/benchmarks.jar jack.ScalingBenchmark [options] [-- compiler options]
+//
+//   --axes a,b,...     axes to run, default all
+//   --max-bytes N      largest input of the size axis, default 100000000
+//   --reps N           runs per point, default 3
+//   --out FILE         CSV to write, default scaling.csv
+//   --baseline FILE    CSV of an earlier run to compare against
+//   --tolerance F      allowed slowdown before the gate fails, default 0.25
+//
+// Anything after -- is passed on as compiler options, e.g. -- -O --jobs 4.
+
+public class ScalingBenchmark {
+    static final String[] AXES = {"size", "classes", "nesting", "strings"};
+    static final String CSV_HEADER = "axis,point,files,bytes,status,millis,mbPerSecond,peakRssKb,peakHeapKb,allocatedMb,allocMbPerSecond";
+    //Differences under this are noise on any machine, the gate ignores them
+    static final double SLACK_MILLIS = 5;
+
+    String[] axes = AXES;
+    long maxBytes = 100_000_000L;
+    int reps = 3;
+    Path out = Paths.get("scaling.csv");
+    Path baseline = null;
+    double tolerance = 0.25;
+    String[] compilerArgs = {};
+
+    public static void main(String[] args) throws IOException {
+	ScalingBenchmark bench = new ScalingBenchmark();
+	bench.parseArgs(args);
+	System.exit(bench.run() ? 0 : 1);
+    }
+
+    void parseArgs(String[] args) {
+	for (int i = 0; i < args.length; i++) {
+	    switch (args[i]) {
+		case "--axes":
+		    axes = args[++i].split(",");
+		    break;
+		case "--max-bytes":
+		    maxBytes = Long.parseLong(args[++i]);
+		    break;
+		case "--reps":
+		    reps = Integer.parseInt(args[++i]);
+		    break;
+		case "--out":
+		    out = Paths.get(args[++i]);
+		    break;
+		case "--baseline":
+		    baseline = Paths.get(args[++i]);
+		    break;
+		case "--tolerance":
+		    tolerance = Double.parseDouble(args[++i]);
+		    break;
+		case "--":
+		    compilerArgs = Arrays.copyOfRange(args, i + 1, args.length);
+		    i = args.length;
+		    break;
+		default:
+		    throw new IllegalArgumentException("Unknown option: " + args[i]);
+	    }
+	}
+    }
+
+    // Runs every axis, writes the CSV and returns false if the gate failed
+    boolean run() throws IOException {
+	//Let the JIT compile the compiler first, or the first points mostly measure the interpreter
+	for (int i = 0; i < 3; i++) {
+	    measure("size", 100000);
+	}
+	List<String[]> rows = new ArrayList<>();
+	for (String axis:axes) {
+	    for (long point:points(axis)) {
+		String[] row = measure(axis, point);
+		System.out.println(String.join(",", row));
+		rows.add(row);
+	    }
+	}
+	try (PrintWriter csv = new PrintWriter(Files.newBufferedWriter(out, StandardCharsets.UTF_8))) {
+	    csv.println(CSV_HEADER);
+	    for (String[] row:rows) {
+		csv.println(String.join(",", row));
+	    }
+	}
+	System.out.println("Wrote " + out);
+	if (baseline == null) {
+	    return true;
+	}
+	return gate(rows, readCsv(baseline));
+    }
+
+    long[] points(String axis) {
+	switch (axis) {
+	    case "size":
+		List<Long> sizes = new ArrayList<>();
+		for (long bytes = 1000; bytes <= maxBytes; bytes *= 10) {
+		    sizes.add(bytes);
+		}
+		return sizes.stream().mapToLong(Long::longValue).toArray();
+	    case "classes":
+		return new long[] {1, 10, 100, 1000, 10000};
+	    case "nesting":
+		return new long[] {1, 10, 100, 1000};
+	    case "strings":
+		return new long[] {10, 100, 1000, 10000, 100000};
+	    default:
+		throw new IllegalArgumentException("Unknown axis: " + axis + ", expected one of " + String.join(",", AXES));
+	}
+    }
+
+    // Writes the input for one point into a fresh directory
+    void generate(String axis, long point, Path dir) throws IOException {
+	CorpusGenerator gen = new CorpusGenerator(Corpus.SEED);
+	switch (axis) {
+	    case "size":
+		//A subroutine of the generator comes to about 1.4 KB
+		int subroutines = (int) Math.max(1, point / 1400);
+		try (BufferedWriter w = Files.newBufferedWriter(dir.resolve("Big.jack"), StandardCharsets.UTF_8)) {
+		    gen.writeClass(w, "Big", subroutines, 12, 4);
+		}
+		break;
+	    case "classes":
+		for (int k = 0; k < point; k++) {
+		    String name = "C" + k;
+		    Files.write(dir.resolve(name + ".jack"), gen.generateClass(name, 4, 8, 3).getBytes(StandardCharsets.UTF_8));
+		}
+		break;
+	    case "nesting":
+		Files.write(dir.resolve("Nested.jack"), gen.generateNested("Nested", 50, (int) point).getBytes(StandardCharsets.UTF_8));
+		break;
+	    case "strings":
+		Files.write(dir.resolve("Strings.jack"), gen.generateStrings("Strings", 20, (int) point).getBytes(StandardCharsets.UTF_8));
+		break;
+	    default:
+		throw new IllegalArgumentException("Unknown axis: " + axis);
+	}
+    }
+
+    String[] measure(String axis, long point) throws IOException {
+	Path dir = Files.createTempDirectory("jack-scaling-" + axis);
+	try {
+	    generate(axis, point, dir);
+	    List<String> files = JackCompiler.findFiles(dir.toString(), ".jack");
+	    long bytes = 0;
+	    for (String f:files) {
+		bytes += Files.size(Paths.get(f));
+	    }
+	    String[] args = Arrays.copyOf(compilerArgs, compilerArgs.length + 1);
+	    args[compilerArgs.length] = dir.toString();
+	    CompilerOptions options = CompilerOptions.parse(args);
+
+	    String status = "ok";
+	    long[] nanos = new long[reps];
+	    long peakRss = 0;
+	    long peakHeap = 0;
+	    long allocated = 0;
+	    for (int r = 0; r < reps; r++) {
+		System.gc();
+		resetPeaks();
+		Map<Long, Long> allocBefore = allocatedBytes();
+		long start = System.nanoTime();
+		try {
+		    //The pipeline of JackCompiler.main: getFileNames (without the printing) to .vm
+		    List<String> filenames = JackCompiler.findFiles(options.inputDir, ".jack");
+		    List<CompileResult> results = JackCompiler.compileAll(filenames, options, null);
+		    allocated = Math.max(allocated, allocatedSince(allocBefore));
+		    for (CompileResult result:results) {
+			if (result.getError() != null) {
+			    status = "error";
+			}
+		    }
+		    if (JackCompiler.finishProgram(options, results) != 0) {
+			status = "error";
+		    }
+		} catch (StackOverflowError e) {
+		    //Deep nesting can run out of stack, which is a result worth having in the curve
+		    status = "stackoverflow";
+		}
+		nanos[r] = System.nanoTime() - start;
+		peakRss = Math.max(peakRss, peakRssKb());
+		peakHeap = Math.max(peakHeap, peakHeapKb());
+		if (!status.equals("ok")) {
+		    break;
+		}
+	    }
+	    Arrays.sort(nanos);
+	    double millis = nanos[nanos.length / 2] / 1e6;
+	    double seconds = millis / 1000;
+	    return new String[] {
+		axis, Long.toString(point), Integer.toString(files.size()), Long.toString(bytes), status,
+		format(millis), format(bytes / 1e6 / seconds), Long.toString(peakRss), Long.toString(peakHeap),
+		format(allocated / 1e6), format(allocated / 1e6 / seconds)
+	    };
+	} finally {
+	    Corpus.deleteAll(dir);
+	}
+    }
+
+    static String format(double d) {
+	return String.format("%.2f", d);
+    }
+
+    // Fails on every point that is slower than its baseline by more than the tolerance
+    boolean gate(List<String[]> rows, Map<String, String[]> base) {
+	boolean pass = true;
+	for (String[] row:rows) {
+	    String[] old = base.get(row[0] + "," + row[1]);
+	    if (old == null) {
+		continue;
+	    }
+	    double now = Double.parseDouble(row[5]);
+	    double then = Double.parseDouble(old[5]);
+	    if (!row[4].equals(old[4])) {
+		System.out.println("REGRESSION " + row[0] + " " + row[1] + ": status " + old[4] + " -> " + row[4]);
+		pass = false;
+	    } else if (now > then * (1 + tolerance) && now - then > SLACK_MILLIS) {
+		System.out.println("REGRESSION " + row[0] + " " + row[1] + ": " + format(then) + " ms -> " + format(now) + " ms");
+		pass = false;
+	    }
+	}
+	System.out.println(pass ? "No regressions against " + baseline : "Slower than " + baseline);
+	return pass;
+    }
+
+    // Rows of an earlier run, by "axis,point"
+    static Map<String, String[]> readCsv(Path file) throws IOException {
+	Map<String, String[]> rows = new HashMap<>();
+	for (String line:Files.readAllLines(file, StandardCharsets.UTF_8)) {
+	    if (line.isEmpty() || line.equals(CSV_HEADER)) {
+		continue;
+	    }
+	    String[] row = line.split(",");
+	    rows.put(row[0] + "," + row[1], row);
+	}
+	return rows;
+    }
+
+    // Bytes each live thread has allocated so far, by thread id
+    static Map<Long, Long> allocatedBytes() {
+	com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+	long[] ids = threads.getAllThreadIds();
+	long[] bytes = threads.getThreadAllocatedBytes(ids);
+	Map<Long, Long> allocated = new HashMap<>();
+	for (int i = 0; i < ids.length; i++) {
+	    if (bytes[i] >= 0) {
+		allocated.put(ids[i], bytes[i]);
+	    }
+	}
+	return allocated;
+    }
+
+    // Allocated since 'before' by the threads alive now. Fork/join workers stay alive
+    // for a while after compileAll shuts the pool down, so --jobs threads are counted.
+    static long allocatedSince(Map<Long, Long> before) {
+	long sum = 0;
+	for (Map.Entry<Long, Long> e:allocatedBytes().entrySet()) {
+	    sum += e.getValue() - before.getOrDefault(e.getKey(), 0L);
+	}
+	return sum;
+    }
+
+    static void resetPeaks() {
+	for (MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()) {
+	    pool.resetPeakUsage();
+	}
+	//Linux only: resets VmHWM, so each point gets its own peak RSS
+	try {
+	    Files.write(Paths.get("/proc/self/clear_refs"), "5".getBytes(StandardCharsets.US_ASCII), StandardOpenOption.WRITE);
+	} catch (IOException | UnsupportedOperationException e) {
+	    //Then the peak only ever goes up
+	}
+    }
+
+    static long peakHeapKb() {
+	long peak = 0;
+	for (MemoryPoolMXBean pool:ManagementFactory.getMemoryPoolMXBeans()) {
+	    if (pool.getType() == MemoryType.HEAP) {
+		peak += pool.getPeakUsage().getUsed();
+	    }
+	}
+	return peak / 1024;
+    }
+
+    // VmHWM from /proc/self/status, -1 where there is no /proc
+    static long peakRssKb() {
+	try {
+	    for (String line:Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+		if (line.startsWith("VmHWM:")) {
+		    return Long.parseLong(line.replaceAll("[^0-9]", ""));
+		}
+	    }
+	} catch (IOException e) {
+	    //Not Linux
+	}
+	return -1;
+    }
+}
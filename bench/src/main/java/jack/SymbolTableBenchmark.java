@@ -0,0 +1,75 @@
+package jack;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// Identifier lookup latency as the scopes grow. Half of the symbols are
+// class-level (fields and statics), half subroutine-level (arguments and
+// locals). Lookups cycle through all of them, so names found late in either
+// scope are measured as often as early ones.
+
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SymbolTableBenchmark {
+
+    @Param({"8", "64", "512", "4096"})
+    public int scopeSize;
+
+    SymbolTable st;
+    String[] names;
+    int next;
+
+    @Setup(Level.Trial)
+    public void setup() {
+	st = new SymbolTable();
+	st.resetClass();
+	int half = scopeSize / 2;
+	names = new String[scopeSize];
+	for (int i = 0; i < half; i++) {
+	    names[i] = "member" + i;
+	    st.insertClassEntry(names[i], "int", i % 2 == 0 ? VmCode.THIS : VmCode.STATIC);
+	}
+	st.resetSubroutine();
+	for (int i = half; i < scopeSize; i++) {
+	    names[i] = "var" + i;
+	    st.insertSubroutineEntry(names[i], "int", i % 2 == 0 ? VmCode.LOCAL : VmCode.ARGUMENT);
+	}
+	//Fresh String objects, like the ones the Tokenizer hands to the parser
+	for (int i = 0; i < scopeSize; i++) {
+	    names[i] = new String(names[i].toCharArray());
+	}
+    }
+
+    @Benchmark
+    public String checkForElement() {
+	next = next + 1 == names.length ? 0 : next + 1;
+	return st.checkForElement(names[next]);
+    }
+
+    @Benchmark
+    public String checkTypeOf() {
+	next = next + 1 == names.length ? 0 : next + 1;
+	return st.checkTypeOf(names[next]);
+    }
+
+    @Benchmark
+    public int counts() {
+	return st.getLocalCount() + st.getArgCount() + st.getFieldCount();
+    }
+}
@@ -0,0 +1,443 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.stream.Stream;
+
+// Runs the programs in regress/ and checks what they print. Each directory with
+// an expected.txt holds a program and the output it must give. Every program is
+// compiled with each of OPTION_SETS and run: the .vm files on the VM interpreter
+// below, which has the OS calls built in, and with --emit asm the .asm on the Hack
+// CPU below, with the small OS in regress/os compiled into the program. Exits with
+// status 1 if any run prints something else. The Maven build runs it in the test
+// phase:
+//   java -cp target/classes:target/test-classes RegressionCheck regress
+public class RegressionCheck {
+
+    static final String[][] OPTION_SETS = {
+	{},
+	{"-O"},
+	{"-O", "--pool-strings"},
+	{"-O", "--jobs", "4"},
+	{"-O", "--inline"},
+	{"--emit", "asm"},
+	{"-O", "--emit", "asm"},
+	{"-O", "--inline", "--emit", "asm"},
+    };
+    static final long MAX_STEPS = 100000000L;
+
+    public static void main(String[] args) throws IOException {
+	Path root = Paths.get(args.length > 0 ? args[0] : "regress");
+	List<Path> programs = new ArrayList<>();
+	try (Stream<Path> dirs = Files.list(root)) {
+	    dirs.filter(d -> Files.exists(d.resolve("expected.txt"))).sorted().forEach(programs::add);
+	}
+	int failed = 0;
+	int runs = 0;
+	for (Path program:programs) {
+	    String expected = Files.readString(program.resolve("expected.txt"));
+	    for (String[] set:OPTION_SETS) {
+		String got;
+		try {
+		    got = run(program, root.resolve("os"), set);
+		} catch (IOException | RuntimeException e) {
+		    got = "<" + e + ">";
+		}
+		runs++;
+		if (!got.equals(expected)) {
+		    failed++;
+		    System.out.println("FAIL " + program.getFileName() + " " + String.join(" ", set));
+		    System.out.println("  expected: " + expected.replace("\n", "\\n"));
+		    System.out.println("  got:      " + got.replace("\n", "\\n"));
+		}
+	    }
+	}
+	System.out.println("Regression programs: " + programs.size() + ", runs: " + runs + ", failed: " + failed);
+	if (failed > 0 || programs.isEmpty()) {
+	    System.exit(1);
+	}
+    }
+
+    // Compiles a copy of 'program' with 'set' and returns what it printed
+    static String run(Path program, Path os, String[] set) throws IOException {
+	Path dir = Files.createTempDirectory("jack-regress");
+	try {
+	    Path work = dir.resolve(program.getFileName().toString());
+	    Files.createDirectory(work);
+	    boolean asm = Arrays.asList(set).contains("asm");
+	    copyJack(program, work);
+	    if (asm) {
+		copyJack(os, work);
+	    }
+	    String[] args = Arrays.copyOf(set, set.length + 1);
+	    args[set.length] = work.toString();
+	    CompilerOptions options = CompilerOptions.parse(args);
+	    List<CompileResult> results = JackCompiler.compileAll(JackCompiler.findFiles(work.toString(), ".jack"), options, null);
+	    for (CompileResult r:results) {
+		if (r.getError() != null) {
+		    throw new IllegalStateException(r.getFileName() + ": " + r.getError());
+		}
+	    }
+	    if (JackCompiler.finishProgram(options, results) != 0) {
+		throw new IllegalStateException("linking failed");
+	    }
+	    if (asm) {
+		return HackCpu.run(Files.readAllLines(work.resolve(work.getFileName() + ".asm")));
+	    }
+	    return new VmInterpreter().run(JackCompiler.findFiles(work.toString(), ".vm"));
+	} finally {
+	    try (Stream<Path> paths = Files.walk(dir)) {
+		for (Path p:(Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+		    Files.delete(p);
+		}
+	    }
+	}
+    }
+
+    static void copyJack(Path from, Path to) throws IOException {
+	try (Stream<Path> files = Files.list(from)) {
+	    for (Path f:(Iterable<Path>) files.filter(p -> p.toString().endsWith(".jack"))::iterator) {
+		Files.copy(f, to.resolve(f.getFileName()));
+	    }
+	}
+    }
+
+    // Runs .vm files from Sys.init, or Main.main if there is none. The OS functions
+    // the programs use are built in, with Output writing to the returned text.
+    static class VmInterpreter {
+	short[] ram = new short[32768];
+	List<String[]> code = new ArrayList<>();   // op, arg1, arg2, function, file
+	HashMap<String, Integer> functions = new HashMap<>();
+	HashMap<String, Integer> labels = new HashMap<>();
+	HashMap<String, Integer> staticBases = new HashMap<>();
+	StringBuilder out = new StringBuilder();
+	int heap = 2048;
+	boolean halted = false;
+
+	String run(List<String> files) throws IOException {
+	    int nextStatic = 16;
+	    for (String f:files) {
+		String file = Paths.get(f).getFileName().toString().replace(".vm", "");
+		staticBases.put(file, nextStatic);
+		String function = "";
+		for (String line:Files.readAllLines(Paths.get(f))) {
+		    String[] w = line.trim().split("\\s+");
+		    if (w[0].isEmpty()) {
+			continue;
+		    }
+		    if (w[0].equals("function")) {
+			function = w[1];
+			functions.put(function, code.size());
+		    } else if (w[0].equals("label")) {
+			labels.put(function + "$" + w[1], code.size());
+		    } else if (w[0].equals("push") || w[0].equals("pop")) {
+			if (w[1].equals("static")) {
+			    nextStatic = Math.max(nextStatic, staticBases.get(file) + Integer.parseInt(w[2]) + 1);
+			}
+		    }
+		    String[] ins = Arrays.copyOf(w, 5);
+		    ins[3] = function;
+		    ins[4] = file;
+		    code.add(ins);
+		}
+	    }
+	    ram[0] = 256;
+	    Integer entry = functions.containsKey("Sys.init") ? functions.get("Sys.init") : functions.get("Main.main");
+	    if (entry == null) {
+		throw new IllegalStateException("no Sys.init or Main.main");
+	    }
+	    //A frame for the first function to return into, at pc -1
+	    push(-1);
+	    for (int k = 1; k <= 4; k++) {
+		push(ram[k]);
+	    }
+	    ram[2] = (short) (ram[0] - 5);
+	    ram[1] = ram[0];
+	    int pc = entry;
+	    long steps = 0;
+	    while (pc >= 0 && !halted) {
+		if (++steps > MAX_STEPS) {
+		    throw new IllegalStateException("step limit");
+		}
+		String[] w = code.get(pc);
+		pc++;
+		switch (w[0]) {
+		    case "push": push(read(w[1], Integer.parseInt(w[2]), w[4])); break;
+		    case "pop": write(w[1], Integer.parseInt(w[2]), w[4], pop()); break;
+		    case "add": { short y = pop(), x = pop(); push(x + y); break; }
+		    case "sub": { short y = pop(), x = pop(); push(x - y); break; }
+		    case "and": { short y = pop(), x = pop(); push(x & y); break; }
+		    case "or": { short y = pop(), x = pop(); push(x | y); break; }
+		    case "eq": { short y = pop(), x = pop(); push(x == y ? -1 : 0); break; }
+		    case "gt": { short y = pop(), x = pop(); push(x > y ? -1 : 0); break; }
+		    case "lt": { short y = pop(), x = pop(); push(x < y ? -1 : 0); break; }
+		    case "neg": push(-pop()); break;
+		    case "not": push(~pop()); break;
+		    case "label": break;
+		    case "goto": pc = label(w); break;
+		    case "if-goto": if (pop() != 0) { pc = label(w); } break;
+		    case "function":
+			for (int k = 0; k < Integer.parseInt(w[2]); k++) {
+			    push(0);
+			}
+			break;
+		    case "call": {
+			int n = Integer.parseInt(w[2]);
+			Integer target = functions.get(w[1]);
+			if (target == null) {
+			    builtin(w[1], n);
+			    break;
+			}
+			push(pc);
+			for (int k = 1; k <= 4; k++) {
+			    push(ram[k]);
+			}
+			ram[2] = (short) (ram[0] - n - 5);
+			ram[1] = ram[0];
+			pc = target;
+			break;
+		    }
+		    case "return": {
+			int frame = ram[1];
+			pc = ram[frame - 5];
+			ram[ram[2]] = pop();
+			ram[0] = (short) (ram[2] + 1);
+			for (int k = 4; k >= 1; k--) {
+			    ram[k] = ram[frame - 5 + k];
+			}
+			break;
+		    }
+		    default:
+			throw new IllegalStateException("unknown VM op " + w[0]);
+		}
+	    }
+	    return out.toString();
+	}
+
+	int label(String[] w) {
+	    Integer target = labels.get(w[3] + "$" + w[1]);
+	    if (target == null) {
+		throw new IllegalStateException("no label " + w[1] + " in " + w[3]);
+	    }
+	    return target;
+	}
+
+	void push(int v) {
+	    ram[ram[0]] = (short) v;
+	    ram[0]++;
+	}
+	short pop() {
+	    ram[0]--;
+	    return ram[ram[0]];
+	}
+
+	int address(String segment, int i, String file) {
+	    switch (segment) {
+		case "local": return ram[1] + i;
+		case "argument": return ram[2] + i;
+		case "this": return (ram[3] & 0x7fff) + i;
+		case "that": return (ram[4] & 0x7fff) + i;
+		case "pointer": return 3 + i;
+		case "temp": return 5 + i;
+		case "static": return staticBases.get(file) + i;
+		default: throw new IllegalStateException("unknown segment " + segment);
+	    }
+	}
+	short read(String segment, int i, String file) {
+	    return segment.equals("constant") ? (short) i : ram[address(segment, i, file) & 0x7fff];
+	}
+	void write(String segment, int i, String file, short v) {
+	    ram[address(segment, i, file) & 0x7fff] = v;
+	}
+
+	void builtin(String name, int n) {
+	    short[] a = new short[n];
+	    for (int k = n - 1; k >= 0; k--) {
+		a[k] = pop();
+	    }
+	    int r = 0;
+	    switch (name) {
+		case "Math.multiply": r = a[0] * a[1]; break;
+		case "Math.divide": r = a[0] / a[1]; break;
+		case "Memory.alloc":
+		case "Array.new":
+		    r = heap;
+		    heap += Math.max(a[0], 1);
+		    break;
+		case "Memory.deAlloc":
+		case "Array.dispose":
+		case "String.dispose":
+		    break;
+		case "String.new":
+		    r = heap;
+		    heap += Math.max(a[0], 1) + 2;
+		    ram[r] = a[0];
+		    ram[r + 1] = 0;
+		    break;
+		case "String.appendChar":
+		    r = a[0];
+		    ram[r + 2 + ram[r + 1]] = a[1];
+		    ram[r + 1]++;
+		    break;
+		case "String.length": r = ram[a[0] + 1]; break;
+		case "String.charAt": r = ram[a[0] + 2 + a[1]]; break;
+		case "Output.printInt": out.append(a[0]); break;
+		case "Output.printChar": out.append((char) a[0]); break;
+		case "Output.println": out.append('\n'); break;
+		case "Output.printString":
+		    for (int k = 0; k < ram[a[0] + 1]; k++) {
+			out.append((char) ram[a[0] + 2 + k]);
+		    }
+		    break;
+		case "Sys.halt": halted = true; break;
+		default: throw new IllegalStateException("no function " + name);
+	    }
+	    push(r);
+	}
+    }
+
+    // Runs Hack assembly until it reaches Sys.halt. The OS in regress/os keeps what
+    // Output printed at RAM[25000..], with the length in RAM[24999].
+    static class HackCpu {
+	static final int LOG = 25000;
+
+	static String run(List<String> lines) {
+	    HashMap<String, Integer> symbols = new HashMap<>();
+	    String[] registers = {"SP", "LCL", "ARG", "THIS", "THAT"};
+	    for (int k = 0; k < registers.length; k++) {
+		symbols.put(registers[k], k);
+	    }
+	    for (int k = 0; k < 16; k++) {
+		symbols.put("R" + k, k);
+	    }
+	    symbols.put("SCREEN", 16384);
+	    symbols.put("KBD", 24576);
+	    List<String> rom = new ArrayList<>();
+	    for (String line:lines) {
+		int comment = line.indexOf("//");
+		if (comment >= 0) {
+		    line = line.substring(0, comment);
+		}
+		line = line.replaceAll("\\s", "");
+		if (line.startsWith("(")) {
+		    symbols.put(line.substring(1, line.length() - 1), rom.size());
+		} else if (!line.isEmpty()) {
+		    rom.add(line);
+		}
+	    }
+	    int n = rom.size();
+	    int[] values = new int[n];       // for A instructions, else -1
+	    String[] comps = new String[n];
+	    String[] dests = new String[n];
+	    String[] jumps = new String[n];
+	    int nextVariable = 16;
+	    for (int i = 0; i < n; i++) {
+		String s = rom.get(i);
+		values[i] = -1;
+		if (s.startsWith("@")) {
+		    String v = s.substring(1);
+		    if (Character.isDigit(v.charAt(0))) {
+			values[i] = Integer.parseInt(v);
+		    } else {
+			if (!symbols.containsKey(v)) {
+			    symbols.put(v, nextVariable++);
+			}
+			values[i] = symbols.get(v);
+		    }
+		    continue;
+		}
+		int eq = s.indexOf('=');
+		dests[i] = eq >= 0 ? s.substring(0, eq) : "";
+		s = s.substring(eq + 1);
+		int semi = s.indexOf(';');
+		jumps[i] = semi >= 0 ? s.substring(semi + 1) : "";
+		comps[i] = semi >= 0 ? s.substring(0, semi) : s;
+	    }
+	    Integer halt = symbols.get("Sys.halt");
+	    short[] ram = new short[32768];
+	    int a = 0;
+	    int d = 0;
+	    int pc = 0;
+	    long steps = 0;
+	    while (pc < n && (halt == null || pc != halt)) {
+		if (++steps > MAX_STEPS) {
+		    throw new IllegalStateException("step limit");
+		}
+		if (values[pc] >= 0) {
+		    a = values[pc++];
+		    continue;
+		}
+		int m = ram[a & 0x7fff];
+		int r = (short) compute(comps[pc], a, d, m);
+		String dest = dests[pc];
+		int address = a & 0x7fff;
+		if (dest.contains("M")) {
+		    ram[address] = (short) r;
+		}
+		if (dest.contains("A")) {
+		    a = r;
+		}
+		if (dest.contains("D")) {
+		    d = r;
+		}
+		boolean jump;
+		switch (jumps[pc]) {
+		    case "": jump = false; break;
+		    case "JMP": jump = true; break;
+		    case "JEQ": jump = r == 0; break;
+		    case "JNE": jump = r != 0; break;
+		    case "JGT": jump = r > 0; break;
+		    case "JGE": jump = r >= 0; break;
+		    case "JLT": jump = r < 0; break;
+		    case "JLE": jump = r <= 0; break;
+		    default: throw new IllegalStateException("unknown jump " + jumps[pc]);
+		}
+		pc = jump ? a & 0x7fff : pc + 1;
+	    }
+	    StringBuilder out = new StringBuilder();
+	    for (int k = 0; k < ram[LOG - 1]; k++) {
+		out.append((char) ram[LOG + k]);
+	    }
+	    return out.toString();
+	}
+
+	static int compute(String comp, int a, int d, int m) {
+	    switch (comp) {
+		case "0": return 0;
+		case "1": return 1;
+		case "-1": return -1;
+		case "D": return d;
+		case "A": return a;
+		case "M": return m;
+		case "!D": return ~d;
+		case "!A": return ~a;
+		case "!M": return ~m;
+		case "-D": return -d;
+		case "-A": return -a;
+		case "-M": return -m;
+		case "D+1": return d + 1;
+		case "A+1": return a + 1;
+		case "M+1": return m + 1;
+		case "D-1": return d - 1;
+		case "A-1": return a - 1;
+		case "M-1": return m - 1;
+		case "D+A": case "A+D": return d + a;
+		case "D+M": case "M+D": return d + m;
+		case "D-A": return d - a;
+		case "D-M": return d - m;
+		case "A-D": return a - d;
+		case "M-D": return m - d;
+		case "D&A": case "A&D": return d & a;
+		case "D&M": case "M&D": return d & m;
+		case "D|A": case "A|D": return d | a;
+		case "D|M": case "M|D": return d | m;
+		default: throw new IllegalStateException("unknown comp " + comp);
+	    }
+	}
+    }
+}